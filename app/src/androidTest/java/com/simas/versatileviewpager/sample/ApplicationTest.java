@@ -26,8 +26,11 @@ import android.support.test.InstrumentationRegistry;
 import android.support.test.espresso.ViewInteraction;
 import android.support.test.espresso.action.ViewActions;
 import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.app.Fragment;
 import android.test.ActivityInstrumentationTestCase2;
 
+import com.simas.versatileviewpager.VersatilePagerAdapter;
+
 import static android.support.test.espresso.action.ViewActions.*;
 import static com.simas.versatileviewpager.sample.TestUtils.*;
 import static android.support.test.espresso.Espresso.*;
@@ -157,6 +160,195 @@ public class ApplicationTest extends ActivityInstrumentationTestCase2<MainActivi
 		assertEquals(getActivity().adapter.getCount(), 2);
 	}
 
+	@Test
+	public void batchItemRemoval() {
+		setCount(10);
+		setCurrentItem(2);
+
+		// Remove items that follow the current one, in no particular order
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				getActivity().adapter.onItemsRemoved(9, 4, 6, 4);
+			}
+		});
+		sleep(400);
+
+		assertEquals(getActivity().adapter.getCount(), 8); // 1 for empty item
+		onView(withText(getString(R.string.position_format, 2)))
+				.check(IS_COMPLETELY_DISPLAYED);
+
+		// Remove a range that contains the current item
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				getActivity().adapter.onItemRangeRemoved(1, 3);
+			}
+		});
+		sleep(800);
+
+		assertEquals(getActivity().adapter.getCount(), 5); // 1 for empty item
+		assertEquals(getActivity().pager.getCurrentItem(), 2);
+	}
+
+	@Test
+	public void batchRemovalOfCurrentItem() {
+		setCount(6);
+		setCurrentItem(2);
+
+		// Remove the current item together with the following one
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				getActivity().adapter.onItemsRemoved(2, 3);
+			}
+		});
+		sleep(800);
+
+		// The previous item is the closest one that survived
+		assertEquals(getActivity().adapter.getCount(), 5); // 1 for empty item
+		assertEquals(getActivity().pager.getCurrentItem(), 1);
+		onView(withText(getString(R.string.position_format, 1)))
+				.check(IS_COMPLETELY_DISPLAYED);
+	}
+
+	@Test
+	public void itemInsertionAndMove() {
+		setCount(3);
+		setCurrentItem(2);
+
+		// Insert an item in front of the current one
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				getActivity().adapter.onItemInserted(1);
+			}
+		});
+		sleep(400);
+
+		// The current item should have moved along with its fragment
+		assertEquals(getActivity().adapter.getCount(), 5); // 1 for empty item
+		assertEquals(getActivity().pager.getCurrentItem(), 3);
+		onView(withText(getString(R.string.position_format, 2)))
+				.check(IS_COMPLETELY_DISPLAYED);
+
+		// Move the current item to the end
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				getActivity().adapter.onItemMoved(3, 4);
+			}
+		});
+		sleep(400);
+
+		assertEquals(getActivity().adapter.getCount(), 5); // 1 for empty item
+		assertEquals(getActivity().pager.getCurrentItem(), 4);
+		onView(withText(getString(R.string.position_format, 2)))
+				.check(IS_COMPLETELY_DISPLAYED);
+	}
+
+	@Test
+	public void fragmentsFollowStableIdsOnReplace() {
+		final long[] ids = {100, 200, 300};
+		final VersatilePagerAdapter adapter =
+				new VersatilePagerAdapter(getActivity().getSupportFragmentManager()) {
+			@Override
+			public Fragment createItem(int position) {
+				return getActivity().adapter.createItem(position);
+			}
+
+			@Override
+			public boolean hasStableIds() {
+				return true;
+			}
+
+			@Override
+			public long getItemId(int position) {
+				// Would throw for the empty item
+				return ids[position - 1];
+			}
+		};
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				getActivity().pager.setAdapter(adapter);
+				adapter.setCount(3);
+			}
+		});
+		sleep(400);
+		final Fragment first = adapter.getItem(1), second = adapter.getItem(2);
+		assertNotNull(first);
+		assertNotNull(second);
+
+		// Swap the first two items and replace the last one
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				ids[0] = 200;
+				ids[1] = 100;
+				ids[2] = 400;
+				adapter.onDataSetReplaced(3);
+			}
+		});
+		sleep(400);
+
+		assertSame(second, adapter.getItem(1));
+		assertSame(first, adapter.getItem(2));
+		onView(withText(getString(R.string.position_format, 2)))
+				.check(IS_COMPLETELY_DISPLAYED);
+	}
+
+	@Test
+	public void fragmentsFollowSubmittedIds() {
+		setCount(3);
+		final Fragment first = getActivity().adapter.getItem(1);
+		final Fragment second = getActivity().adapter.getItem(2);
+		assertNotNull(first);
+		assertNotNull(second);
+
+		// Swap the first two items and remove the last one
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				getActivity().adapter.submitList(new long[] {1, 2, 3}, new long[] {2, 1});
+			}
+		});
+		sleep(400);
+
+		assertEquals(getActivity().adapter.getCount(), 3); // 1 for empty item
+		assertSame(second, getActivity().adapter.getItem(1));
+		assertSame(first, getActivity().adapter.getItem(2));
+		onView(withText(getString(R.string.position_format, 2)))
+				.check(IS_COMPLETELY_DISPLAYED);
+	}
+
+	@Test
+	public void recycledFragmentsShowTheirNewPositions() {
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				getActivity().adapter.setRecyclingEnabled(true);
+			}
+		});
+		setCount(10);
+		final Fragment first = getActivity().adapter.getItem(1);
+		assertNotNull(first);
+
+		final ViewInteraction pager = onView(withId(R.id.pager));
+		for (int i=0; i<4; i++) {
+			pager.perform(swipeLeft());
+		}
+
+		// The first fragment is reused further on and shows its new position, not its old text
+		Fragment fragment5 = getActivity().adapter.getItem(5);
+		Fragment fragment6 = getActivity().adapter.getItem(6);
+		assertTrue(first == fragment5 || first == fragment6);
+		onView(withText(getString(R.string.position_format, 5)))
+				.check(IS_COMPLETELY_DISPLAYED);
+		onView(withText(getString(R.string.position_format, 1)))
+				.check(doesNotExist());
+	}
+
 	@Test
 	public void adapterItemGetter() {
 		setCount(10);
@@ -239,6 +431,39 @@ public class ApplicationTest extends ActivityInstrumentationTestCase2<MainActivi
 				.check(matches(withContentDescription("2"))); // Saved twice
 	}
 
+	/**
+	 * This test should be taken lightly as Espresso tests are not menat for directly
+	 * manipulating the activity.
+	 */
+	@Test
+	public void itemStateRestoredFromSpillFileOnRotate() {
+		MainActivity.spillStates = true;
+		try {
+			runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					getActivity().adapter.setSavedStateSpillDirectory(getActivity().getCacheDir());
+				}
+			});
+			setCount(5);
+			// Destroys the first item, so its state is kept by the adapter
+			setCurrentItem(5);
+
+			rotate();
+			assertTrue(hasSpillFile());
+
+			rotate();
+			final ViewInteraction pager = onView(withId(R.id.pager));
+			for (int i=0; i<4; i++) {
+				pager.perform(swipeRight());
+			}
+			onView(withText(getString(R.string.position_format, 1)))
+					.check(matches(withContentDescription("1"))); // Saved once, when destroyed
+		} finally {
+			MainActivity.spillStates = false;
+		}
+	}
+
 	/**
 	 * This test should be taken lightly as Espresso tests are not menat for directly
 	 * manipulating the activity.
@@ -283,6 +508,15 @@ public class ApplicationTest extends ActivityInstrumentationTestCase2<MainActivi
 		sleep(400);
 	}
 
+	private boolean hasSpillFile() {
+		String[] files = getActivity().getCacheDir().list();
+		if (files == null) return false;
+		for (String file : files) {
+			if (file.startsWith("versatile_pager_states")) return true;
+		}
+		return false;
+	}
+
 	private String getString(int resId) {
 		return getActivity().getString(resId);
 	}
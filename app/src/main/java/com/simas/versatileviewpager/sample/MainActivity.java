@@ -38,6 +38,10 @@ public class MainActivity extends AppCompatActivity {
 	VersatilePagerAdapter adapter;
 
 	private static boolean first = true;
+	/**
+	 * Spill the saved states of the recreated activities, used by the tests
+	 */
+	static boolean spillStates;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -57,7 +61,15 @@ public class MainActivity extends AppCompatActivity {
 				fragment.setArguments(args);
 				return fragment;
 			}
+
+			@Override
+			public void bindItem(Fragment fragment, int position) {
+				((NumberedFragment) fragment).setPosition(position);
+			}
 		};
+		if (spillStates) {
+			adapter.setSavedStateSpillDirectory(getCacheDir());
+		}
 		pager.setAdapter(adapter);
 //		if (first) {
 //			first = false;
@@ -102,6 +114,14 @@ public class MainActivity extends AppCompatActivity {
 			}
 		}
 
+		/**
+		 * Used when the fragment is recycled for another position.
+		 */
+		public void setPosition(int position) {
+			mPosition = position;
+			mSavedCount = 0;
+		}
+
 		@Override
 		public void onSaveInstanceState(Bundle outState) {
 			super.onSaveInstanceState(outState);
@@ -115,6 +135,8 @@ public class MainActivity extends AppCompatActivity {
 			View root = i.inflate(com.simas.versatileviewpager.R.layout.fragment_empty, c, false);
 			TextView tv = (TextView) root.findViewById(R.id.text);
 			tv.setText(String.format(getString(R.string.position_format), mPosition));
+			// Keep the text in the view state, so a recycled fragment would show a leaked one
+			tv.setFreezesText(true);
 			tv.setContentDescription(String.valueOf(mSavedCount));
 			return root;
 		}
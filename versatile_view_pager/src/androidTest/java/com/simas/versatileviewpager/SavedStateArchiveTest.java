@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015. Simas Abramovas
+ *
+ * This file is part of VersatileViewPager.
+ *
+ * VersatileViewPager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VersatileViewPager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VersatileViewPager. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.simas.versatileviewpager;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.support.v4.app.Fragment;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class SavedStateArchiveTest extends AndroidTestCase {
+
+	private static final int[] POSITIONS = {1, 2, 5};
+	private static final long[] IDS = {10, 20, 50};
+
+	private File mFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = new File(getContext().getCacheDir(), "saved_state_archive_test");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	public void testInMemoryRoundTrip() throws IOException {
+		byte[][] data = marshall(createState("a"), null, createState("b"));
+		SavedStateArchive archive = SavedStateArchive.create(POSITIONS, IDS, data);
+
+		assertContents(SavedStateArchive.open(archive.getBytes()), POSITIONS, IDS, data);
+	}
+
+	public void testFileRoundTrip() throws IOException {
+		byte[][] data = marshall(createState("a"), null, createState("b"));
+		SavedStateArchive.write(mFile, null, POSITIONS, IDS, null, data);
+
+		assertContents(SavedStateArchive.open(mFile), POSITIONS, IDS, data);
+		assertFalse(new File(mFile.getPath() + ".new").exists());
+	}
+
+	public void testSharedEntriesCopied() throws IOException {
+		byte[][] data = marshall(createState("a"), createState("b"), createState("c"));
+		SavedStateArchive previous = SavedStateArchive.write(mFile, null, POSITIONS, IDS, null, data);
+
+		// Overwrite the same file, keeping the first and the last entries
+		int[] positions = {1, 2, 5, 6};
+		long[] ids = {10, 20, 50, 60};
+		int[] sources = {0, -1, 2, -1};
+		byte[][] dirty = marshall(null, createState("d"), null, createState("e"));
+		SavedStateArchive.write(mFile, previous, positions, ids, sources, dirty);
+
+		byte[][] expected = {data[0], dirty[1], data[2], dirty[3]};
+		SavedStateArchive archive = SavedStateArchive.open(mFile);
+		assertContents(archive, positions, ids, expected);
+
+		// Copy everything into memory, in reverse
+		int[] reversed = {3, 2, 1, 0};
+		SavedStateArchive copy = SavedStateArchive.create(archive, positions, ids, reversed,
+				new byte[4][]);
+		for (int i = 0; i < positions.length; ++i) {
+			assertTrue(Arrays.equals(expected[reversed[i]], copy.readBytes(i)));
+		}
+	}
+
+	public void testCorruptArchiveRejected() {
+		try {
+			SavedStateArchive.open(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+			fail();
+		} catch (IOException ignored) {}
+	}
+
+	private static void assertContents(SavedStateArchive archive, int[] positions, long[] ids,
+	                                   byte[][] data) throws IOException {
+		assertEquals(positions.length, archive.size());
+		ClassLoader loader = SavedStateArchiveTest.class.getClassLoader();
+		for (int i = 0; i < positions.length; ++i) {
+			assertEquals(positions[i], archive.positionAt(i));
+			assertEquals(ids[i], archive.idAt(i));
+			assertEquals(data[i].length != 0, archive.hasState(i));
+			assertTrue(Arrays.equals(data[i], archive.readBytes(i)));
+
+			Fragment.SavedState state = archive.readState(i, loader);
+			if (data[i].length == 0) {
+				assertNull(state);
+			} else {
+				// States don't implement equals, compare their marshalled forms instead
+				assertTrue(Arrays.equals(data[i], SavedStateArchive.marshall(state)));
+			}
+		}
+	}
+
+	private static byte[][] marshall(Fragment.SavedState... states) {
+		byte[][] data = new byte[states.length][];
+		for (int i = 0; i < states.length; ++i) {
+			data[i] = SavedStateArchive.marshall(states[i]);
+		}
+		return data;
+	}
+
+	/**
+	 * SavedState can't be constructed directly, so it's read from a parcel holding its bundle.
+	 */
+	private static Fragment.SavedState createState(String value) {
+		Bundle bundle = new Bundle();
+		bundle.putString("value", value);
+		Parcel parcel = Parcel.obtain();
+		try {
+			parcel.writeBundle(bundle);
+			parcel.setDataPosition(0);
+			return Fragment.SavedState.CREATOR.createFromParcel(parcel);
+		} finally {
+			parcel.recycle();
+		}
+	}
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2015. Simas Abramovas
+ *
+ * This file is part of VersatileViewPager.
+ *
+ * VersatileViewPager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VersatileViewPager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VersatileViewPager. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simas.versatileviewpager;
+
+import java.util.Arrays;
+
+/**
+ * Sparse mapping of adapter positions to values, similar to {@link android.util.SparseArray}.
+ * Positions are kept sorted in a primitive array so lookups are binary searches and reads never
+ * allocate. In addition, the stored positions can be shifted, which is what adapters need when
+ * items are removed from or inserted into the middle of their data set.
+ */
+final class PositionArray<E> {
+
+	private static final int DEFAULT_CAPACITY = 10;
+	private int[] mPositions;
+	private Object[] mValues;
+	private int mSize;
+
+	PositionArray() {
+		mPositions = new int[DEFAULT_CAPACITY];
+		mValues = new Object[DEFAULT_CAPACITY];
+	}
+
+	/**
+	 * Get the value stored at the given position or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	E get(int position) {
+		int index = binarySearch(position);
+		return (index < 0) ? null : (E) mValues[index];
+	}
+
+	/**
+	 * Store a value at the given position, replacing the previous one, if any. Appending after
+	 * the last stored position doesn't need a search.
+	 */
+	void put(int position, E value) {
+		if (mSize > 0 && position <= mPositions[mSize - 1]) {
+			int index = binarySearch(position);
+			if (index >= 0) {
+				mValues[index] = value;
+			} else {
+				insertAt(~index, position, value);
+			}
+		} else {
+			insertAt(mSize, position, value);
+		}
+	}
+
+	/**
+	 * Remove the value stored at the given position. Other positions are left untouched.
+	 */
+	void remove(int position) {
+		int index = binarySearch(position);
+		if (index >= 0) {
+			removeAt(index);
+		}
+	}
+
+	/**
+	 * Add {@code delta} to every stored position that is equal to or greater than {@code from}.
+	 * A negative delta must not move positions onto or past the ones that precede {@code from}.
+	 */
+	void shift(int from, int delta) {
+		shift(from, Integer.MAX_VALUE, delta);
+	}
+
+	/**
+	 * Add {@code delta} to every stored position in the range {@code [from, to)}. The shifted
+	 * positions must not move onto or past any of the positions outside of the range.
+	 */
+	void shift(int from, int to, int delta) {
+		for (int i = indexOfFirst(from); i < mSize && mPositions[i] < to; ++i) {
+			mPositions[i] += delta;
+		}
+	}
+
+	/**
+	 * Move the value stored at {@code from} to {@code to}. The positions in between move by a
+	 * single step towards {@code from} to fill its place.
+	 */
+	void move(int from, int to) {
+		if (from == to) return;
+		E value = get(from);
+		remove(from);
+		if (from < to) {
+			shift(from + 1, to + 1, -1);
+		} else {
+			shift(to, from, 1);
+		}
+		if (value != null) {
+			put(to, value);
+		}
+	}
+
+	/**
+	 * Remove the values stored in the range {@code [from, from + count)} and move the positions
+	 * that follow it back by {@code count}, in a single pass.
+	 */
+	void removeRange(int from, int count) {
+		int start = indexOfFirst(from), end = indexOfFirst(from + count);
+		int removed = end - start;
+		for (int i = end; i < mSize; ++i) {
+			mPositions[i - removed] = mPositions[i] - count;
+			mValues[i - removed] = mValues[i];
+		}
+		Arrays.fill(mValues, mSize - removed, mSize, null);
+		mSize -= removed;
+	}
+
+	/**
+	 * Remove the values stored at the given positions and move every other position back by the
+	 * amount of removed positions that preceded it, in a single pass.
+	 * @param removed    sorted positions without duplicates
+	 * @param count      amount of positions to use from {@code removed}
+	 */
+	void removeAll(int[] removed, int count) {
+		int kept = 0, skipped = 0;
+		for (int i = 0; i < mSize; ++i) {
+			int position = mPositions[i];
+			while (skipped < count && removed[skipped] < position) {
+				++skipped;
+			}
+			if (skipped < count && removed[skipped] == position) continue;
+			mPositions[kept] = position - skipped;
+			mValues[kept++] = mValues[i];
+		}
+		Arrays.fill(mValues, kept, mSize, null);
+		mSize = kept;
+	}
+
+	/**
+	 * Index of the first stored position that is equal to or greater than the given one.
+	 */
+	int indexOfFirst(int position) {
+		int index = binarySearch(position);
+		return (index < 0) ? ~index : index;
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	int positionAt(int index) {
+		return mPositions[index];
+	}
+
+	@SuppressWarnings("unchecked")
+	E valueAt(int index) {
+		return (E) mValues[index];
+	}
+
+	void removeAt(int index) {
+		System.arraycopy(mPositions, index + 1, mPositions, index, mSize - index - 1);
+		System.arraycopy(mValues, index + 1, mValues, index, mSize - index - 1);
+		mValues[--mSize] = null;
+	}
+
+	void clear() {
+		Arrays.fill(mValues, 0, mSize, null);
+		mSize = 0;
+	}
+
+	/**
+	 * Same contract as {@link Arrays#binarySearch(int[], int)} limited to the used part of the
+	 * array. The ranged variant of {@link Arrays} isn't available on API 8.
+	 */
+	private int binarySearch(int position) {
+		int low = 0, high = mSize - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midPosition = mPositions[mid];
+			if (midPosition < position) {
+				low = mid + 1;
+			} else if (midPosition > position) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return ~low;
+	}
+
+	private void insertAt(int index, int position, E value) {
+		if (mSize == mPositions.length) {
+			int[] positions = new int[mSize * 2];
+			Object[] values = new Object[mSize * 2];
+			System.arraycopy(mPositions, 0, positions, 0, mSize);
+			System.arraycopy(mValues, 0, values, 0, mSize);
+			mPositions = positions;
+			mValues = values;
+		}
+		System.arraycopy(mPositions, index, mPositions, index + 1, mSize - index);
+		System.arraycopy(mValues, index, mValues, index + 1, mSize - index);
+		mPositions[index] = position;
+		mValues[index] = value;
+		++mSize;
+	}
+
+}
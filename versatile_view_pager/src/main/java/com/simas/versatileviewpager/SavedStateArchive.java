@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2015. Simas Abramovas
+ *
+ * This file is part of VersatileViewPager.
+ *
+ * VersatileViewPager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VersatileViewPager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VersatileViewPager. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simas.versatileviewpager;
+
+import android.os.Parcel;
+import android.support.v4.app.Fragment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Marshalled {@link Fragment.SavedState}s of adapter items with an index in front of them. The
+ * archive is either kept in memory, as a byte array that fits into a {@link android.os.Bundle},
+ * or stored in a file. The index is read when the archive is opened, while the states themselves
+ * are only unmarshalled when they're requested.<br/><br/>
+ * Format: magic, entry count, then for every entry its position, id, data offset and data length,
+ * followed by the concatenated data of all the entries.
+ */
+final class SavedStateArchive {
+
+	private static final int MAGIC = 0x56565053; // VVPS
+	private static final int HEADER_SIZE = 8;
+	private static final int ENTRY_SIZE = 20;
+	private static final String TEMP_SUFFIX = ".new";
+	private final File mFile;
+	private final byte[] mBytes;
+	private final int[] mPositions, mOffsets, mLengths;
+	private final long[] mIds;
+	private final int mDataStart;
+
+	private SavedStateArchive(File file, byte[] bytes, int[] positions, long[] ids,
+	                          int[] offsets, int[] lengths) {
+		mFile = file;
+		mBytes = bytes;
+		mPositions = positions;
+		mIds = ids;
+		mOffsets = offsets;
+		mLengths = lengths;
+		mDataStart = HEADER_SIZE + positions.length * ENTRY_SIZE;
+	}
+
+	/**
+	 * Create an archive that is kept in memory.
+	 * @param data    marshalled states, see {@link #marshall(Fragment.SavedState)} and {@link
+	 *                #readBytes(int)}
+	 */
+	static SavedStateArchive create(int[] positions, long[] ids, byte[][] data) {
+		int count = positions.length;
+		int[] offsets = new int[count], lengths = new int[count];
+		int dataSize = layout(null, null, data, offsets, lengths);
+		ByteBuffer buffer = index(positions, ids, offsets, lengths, dataSize);
+		for (byte[] bytes : data) {
+			buffer.put(bytes);
+		}
+		return new SavedStateArchive(null, buffer.array(), positions, ids, offsets, lengths);
+	}
+
+	/**
+	 * Create an archive that is kept in memory and shares entries with the previous one. Shared
+	 * entries are copied in bulk, with the previous archive's file opened only once.
+	 * @param sources index of the entry's state in {@code previous} or -1 if it's in {@code
+	 *                data}
+	 * @param data    marshalled states of the entries that aren't shared
+	 */
+	static SavedStateArchive create(SavedStateArchive previous, int[] positions, long[] ids,
+	                                int[] sources, byte[][] data) throws IOException {
+		int count = positions.length;
+		int[] offsets = new int[count], lengths = new int[count];
+		int dataSize = layout(previous, sources, data, offsets, lengths);
+		ByteBuffer buffer = index(positions, ids, offsets, lengths, dataSize);
+		copyData(previous, sources, data, lengths, new BufferChannel(buffer));
+		return new SavedStateArchive(null, buffer.array(), positions, ids, offsets, lengths);
+	}
+
+	/**
+	 * Write an archive to the file, replacing its previous contents. The archive is written to a
+	 * temporary file next to it first, so the previous contents stay intact if writing fails.
+	 * Entries shared with the previous archive are transferred in bulk, without passing them
+	 * through the heap when the previous archive is a file too.
+	 * @param previous archive whose entries are shared or null, it may be stored in the same file
+	 * @param sources  index of the entry's state in {@code previous} or -1 if it's in {@code
+	 *                 data}. May be null if nothing is shared.
+	 * @param data     marshalled states of the entries that aren't shared, see {@link
+	 *                 #marshall(Fragment.SavedState)}
+	 */
+	static SavedStateArchive write(File file, SavedStateArchive previous, int[] positions,
+	                               long[] ids, int[] sources, byte[][] data) throws IOException {
+		int count = positions.length;
+		int[] offsets = new int[count], lengths = new int[count];
+		int dataSize = layout(previous, sources, data, offsets, lengths);
+		ByteBuffer index = index(positions, ids, offsets, lengths, 0);
+		index.flip();
+
+		File temp = new File(file.getPath() + TEMP_SUFFIX);
+		FileOutputStream out = new FileOutputStream(temp);
+		boolean written = false;
+		try {
+			FileChannel channel = out.getChannel();
+			writeFully(channel, index);
+			copyData(previous, sources, data, lengths, channel);
+			if (channel.position() != index.limit() + dataSize) {
+				throw new IOException("Saved state archive size mismatch: " + file);
+			}
+			written = true;
+		} finally {
+			out.close();
+			if (!written) {
+				temp.delete();
+			}
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Failed to replace the saved state archive: " + file);
+		}
+		return new SavedStateArchive(file, null, positions, ids, offsets, lengths);
+	}
+
+	/**
+	 * Read the index of an archive that was previously returned by {@link #getBytes()}.
+	 */
+	static SavedStateArchive open(byte[] bytes) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		if (bytes.length < HEADER_SIZE || buffer.getInt() != MAGIC) {
+			throw new IOException("Not a saved state archive!");
+		}
+		return decode(null, bytes, buffer.getInt(), buffer);
+	}
+
+	/**
+	 * Read the index of an archive that was previously written to the given file.
+	 */
+	static SavedStateArchive open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = read(channel, 0, HEADER_SIZE);
+			if (header.getInt() != MAGIC) {
+				throw new IOException("Not a saved state archive: " + file);
+			}
+			int count = header.getInt();
+			if (count < 0) {
+				throw new IOException("Corrupt saved state archive: " + file);
+			}
+			return decode(file, null, count, read(channel, HEADER_SIZE, count * ENTRY_SIZE));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the file that holds this archive or null if it's kept in memory
+	 */
+	File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * @return the whole archive or null if it's stored in a file
+	 */
+	byte[] getBytes() {
+		return mBytes;
+	}
+
+	int size() {
+		return mPositions.length;
+	}
+
+	int positionAt(int index) {
+		return mPositions[index];
+	}
+
+	long idAt(int index) {
+		return mIds[index];
+	}
+
+	boolean hasState(int index) {
+		return mLengths[index] != 0;
+	}
+
+	/**
+	 * Read the marshalled state of the given entry, without unmarshalling it.
+	 */
+	byte[] readBytes(int index) throws IOException {
+		int length = mLengths[index];
+		if (mBytes != null || length == 0) {
+			byte[] bytes = new byte[length];
+			if (length != 0) {
+				System.arraycopy(mBytes, mDataStart + mOffsets[index], bytes, 0, length);
+			}
+			return bytes;
+		}
+		RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+		try {
+			return read(raf.getChannel(), mDataStart + mOffsets[index], length).array();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Read and unmarshall the state of the given entry.
+	 * @return the state or {@code null} if the entry is empty
+	 */
+	Fragment.SavedState readState(int index, ClassLoader loader) throws IOException {
+		if (!hasState(index)) return null;
+		// In-memory archives are unmarshalled in place
+		byte[] bytes = (mBytes != null) ? mBytes : readBytes(index);
+		int offset = (mBytes != null) ? mDataStart + mOffsets[index] : 0;
+
+		Parcel parcel = Parcel.obtain();
+		try {
+			parcel.unmarshall(bytes, offset, mLengths[index]);
+			parcel.setDataPosition(0);
+			return parcel.readParcelable(loader);
+		} finally {
+			parcel.recycle();
+		}
+	}
+
+	/**
+	 * Marshall a state for {@link #create(int[], long[], byte[][])} or {@link #write(File,
+	 * SavedStateArchive, int[], long[], int[], byte[][])}.
+	 */
+	static byte[] marshall(Fragment.SavedState state) {
+		if (state == null) return new byte[0];
+		Parcel parcel = Parcel.obtain();
+		try {
+			parcel.writeParcelable(state, 0);
+			return parcel.marshall();
+		} finally {
+			parcel.recycle();
+		}
+	}
+
+	private static SavedStateArchive decode(File file, byte[] bytes, int count, ByteBuffer index)
+			throws IOException {
+		if (count < 0 || index.remaining() < count * ENTRY_SIZE) {
+			throw new IOException("Corrupt saved state archive!");
+		}
+		int[] positions = new int[count], offsets = new int[count], lengths = new int[count];
+		long[] ids = new long[count];
+		for (int i = 0; i < count; ++i) {
+			positions[i] = index.getInt();
+			ids[i] = index.getLong();
+			offsets[i] = index.getInt();
+			lengths[i] = index.getInt();
+		}
+		return new SavedStateArchive(file, bytes, positions, ids, offsets, lengths);
+	}
+
+	/**
+	 * Fill in the offsets and lengths of the entries.
+	 * @return size of the data region
+	 */
+	private static int layout(SavedStateArchive previous, int[] sources, byte[][] data,
+	                          int[] offsets, int[] lengths) {
+		int dataSize = 0;
+		for (int i = 0; i < offsets.length; ++i) {
+			offsets[i] = dataSize;
+			lengths[i] = (sources != null && sources[i] >= 0) ?
+					previous.mLengths[sources[i]] : data[i].length;
+			dataSize += lengths[i];
+		}
+		return dataSize;
+	}
+
+	/**
+	 * Allocate a buffer for the header, the index and {@code dataSize} bytes of data, and put
+	 * the former two into it.
+	 */
+	private static ByteBuffer index(int[] positions, long[] ids, int[] offsets, int[] lengths,
+	                                int dataSize) {
+		int count = positions.length;
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * ENTRY_SIZE + dataSize);
+		buffer.putInt(MAGIC).putInt(count);
+		for (int i = 0; i < count; ++i) {
+			buffer.putInt(positions[i]).putLong(ids[i]).putInt(offsets[i]).putInt(lengths[i]);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Write the data of all the entries to the channel. Shared entries that are adjacent in the
+	 * previous archive are copied as a single range.
+	 */
+	private static void copyData(SavedStateArchive previous, int[] sources, byte[][] data,
+	                             int[] lengths, WritableByteChannel out) throws IOException {
+		RandomAccessFile raf = null;
+		try {
+			for (int i = 0; i < lengths.length;) {
+				if (sources == null || sources[i] < 0) {
+					writeFully(out, ByteBuffer.wrap(data[i++]));
+					continue;
+				}
+				int start = previous.mOffsets[sources[i]], length = 0;
+				do {
+					length += lengths[i++];
+				} while (i < lengths.length && sources[i] >= 0 &&
+						previous.mOffsets[sources[i]] == start + length);
+
+				int position = previous.mDataStart + start;
+				if (previous.mBytes != null) {
+					writeFully(out, ByteBuffer.wrap(previous.mBytes, position, length));
+					continue;
+				}
+				if (raf == null) {
+					raf = new RandomAccessFile(previous.mFile, "r");
+				}
+				FileChannel channel = raf.getChannel();
+				for (long done = 0; done < length;) {
+					long transferred = channel.transferTo(position + done, length - done, out);
+					if (transferred <= 0) {
+						throw new IOException("Unexpected end of the saved state archive!");
+					}
+					done += transferred;
+				}
+			}
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+	}
+
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of the saved state archive!");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Channel that puts everything into a buffer, so in-memory archives can share the copying.
+	 */
+	private static final class BufferChannel implements WritableByteChannel {
+
+		private final ByteBuffer mBuffer;
+
+		BufferChannel(ByteBuffer buffer) {
+			mBuffer = buffer;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			int count = src.remaining();
+			mBuffer.put(src);
+			return count;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {}
+
+	}
+
+}
@@ -20,7 +20,9 @@ package com.simas.versatileviewpager;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 
 import java.util.Queue;
@@ -47,13 +49,211 @@ public class Utils {
 		return b;
 	}
 
+	/**
+	 * Takes screenshots into a single bitmap that is reused for as long as the view keeps its size,
+	 * instead of allocating a new one every time. The screenshot can be taken with a cheaper
+	 * {@link Bitmap.Config} and downscaled, to reduce its memory footprint even further.
+	 */
+	public static class ReusableScreenshot {
+
+		private final Bitmap.Config mConfig;
+		private final float mScale;
+		private Bitmap mBitmap;
+		private Canvas mCanvas;
+
+		/**
+		 * @param scale    size of the screenshot relative to the view, in the range (0, 1]
+		 */
+		public ReusableScreenshot(Bitmap.Config config, float scale) {
+			if (scale <= 0 || scale > 1) {
+				throw new IllegalArgumentException("Scale must be in the range (0, 1]!");
+			}
+			mConfig = config;
+			mScale = scale;
+		}
+
+		/**
+		 * Draw the visible part of the view into the bitmap. The returned bitmap is overwritten by
+		 * the next screenshot.
+		 */
+		public Bitmap take(View v) {
+			int width = Math.max(1, (int) (v.getWidth() * mScale));
+			int height = Math.max(1, (int) (v.getHeight() * mScale));
+			if (mBitmap == null || mBitmap.getWidth() != width || mBitmap.getHeight() != height) {
+				// The previous bitmap may still be displayed, so it's left for the GC
+				mBitmap = Bitmap.createBitmap(width, height, mConfig);
+				mCanvas = new Canvas(mBitmap);
+			} else {
+				mBitmap.eraseColor(Color.TRANSPARENT);
+			}
+
+			int saveCount = mCanvas.save();
+			mCanvas.scale(mScale, mScale);
+			// A view doesn't apply its own scroll when drawing, its parent does
+			mCanvas.translate(-v.getScrollX(), -v.getScrollY());
+			v.draw(mCanvas);
+			mCanvas.restoreToCount(saveCount);
+
+			return mBitmap;
+		}
+
+		public Bitmap.Config getConfig() {
+			return mConfig;
+		}
+
+		public float getScale() {
+			return mScale;
+		}
+
+		/**
+		 * Let go of the bitmap. The next screenshot allocates a new one.
+		 */
+		public void release() {
+			mBitmap = null;
+			mCanvas = null;
+		}
+
+	}
+
+	/**
+	 * Runs tasks one after another on the main thread. Same as {@link PausableHandler}, it can be
+	 * paused until a task that spans several messages is done. The tasks are kept in a ring buffer
+	 * and all of the runnable ones are drained by a single handler message, so there are no locks
+	 * and no allocations per task. Queued tasks can be removed, or put in front of the others, so
+	 * that newer work supersedes stale one. Must only be used on the main thread.
+	 */
+	public static class SerialExecutor {
+
+		private static final int INITIAL_CAPACITY = 8;
+		private final Handler mHandler;
+		/**
+		 * Ring buffer of the queued tasks. Its length is always a power of 2.
+		 */
+		private Runnable[] mTasks = new Runnable[INITIAL_CAPACITY];
+		private int mHead, mSize;
+		private boolean mPaused, mDrainScheduled, mDraining;
+		private final Runnable mDrain = new Runnable() {
+			@Override
+			public void run() {
+				mDrainScheduled = false;
+				mDraining = true;
+				try {
+					while (!mPaused && mSize > 0) {
+						Runnable task = mTasks[mHead];
+						mTasks[mHead] = null;
+						mHead = (mHead + 1) & (mTasks.length - 1);
+						--mSize;
+						task.run();
+					}
+				} finally {
+					mDraining = false;
+					// If a task threw, the ones behind it still have to run
+					scheduleDrain();
+				}
+			}
+		};
+
+		public SerialExecutor() {
+			this(new Handler(Looper.getMainLooper()));
+		}
+
+		public SerialExecutor(Handler handler) {
+			mHandler = handler;
+		}
+
+		/**
+		 * Queue the task after all the others.
+		 */
+		public void post(Runnable task) {
+			ensureCapacity();
+			mTasks[(mHead + mSize) & (mTasks.length - 1)] = task;
+			++mSize;
+			scheduleDrain();
+		}
+
+		/**
+		 * Queue the task in front of all the others, so it's the next one to run.
+		 */
+		public void postAtFront(Runnable task) {
+			ensureCapacity();
+			mHead = (mHead - 1) & (mTasks.length - 1);
+			mTasks[mHead] = task;
+			++mSize;
+			scheduleDrain();
+		}
+
+		/**
+		 * Remove all the queued occurrences of the task. Others keep their order.
+		 * @return true if the task was queued
+		 */
+		public boolean remove(Runnable task) {
+			int mask = mTasks.length - 1, kept = 0;
+			for (int i = 0; i < mSize; ++i) {
+				Runnable queued = mTasks[(mHead + i) & mask];
+				if (queued != task) {
+					mTasks[(mHead + kept++) & mask] = queued;
+				}
+			}
+			for (int i = kept; i < mSize; ++i) {
+				mTasks[(mHead + i) & mask] = null;
+			}
+			boolean removed = kept != mSize;
+			mSize = kept;
+			return removed;
+		}
+
+		/**
+		 * Remove all the queued tasks.
+		 */
+		public void clear() {
+			for (int i = 0; i < mSize; ++i) {
+				mTasks[(mHead + i) & (mTasks.length - 1)] = null;
+			}
+			mHead = mSize = 0;
+		}
+
+		/**
+		 * While paused, queued tasks wait for {@code setPaused(false)}. The task that pauses the
+		 * executor is the one that should resume it, once it's done.
+		 */
+		public void setPaused(boolean paused) {
+			mPaused = paused;
+			scheduleDrain();
+		}
+
+		public boolean isPaused() {
+			return mPaused;
+		}
+
+		private void scheduleDrain() {
+			if (!mPaused && mSize > 0 && !mDrainScheduled && !mDraining) {
+				mDrainScheduled = true;
+				mHandler.post(mDrain);
+			}
+		}
+
+		private void ensureCapacity() {
+			if (mSize == mTasks.length) {
+				Runnable[] tasks = new Runnable[mTasks.length * 2];
+				for (int i = 0; i < mSize; ++i) {
+					tasks[i] = mTasks[(mHead + i) & (mTasks.length - 1)];
+				}
+				mTasks = tasks;
+				mHead = 0;
+			}
+		}
+
+	}
+
 	/**
 	 * This handler enables messages to block queued messages until some specific task is done.
 	 * The blocking is done by calling {@code setPaused(true)} and then when the message has done
 	 * it's job it must call {@code setPaused(false)}. If these two method calls are unnecessary
 	 * for a task, then it shouldn't use this handler. It's more suited for a sequence of
 	 * runnables which together execute a specific task.
+	 * @deprecated Use {@link SerialExecutor} instead, it doesn't lock or allocate for every task.
 	 */
+	@Deprecated
 	public static class PausableHandler {
 
 		private final Queue<Runnable> mMessageQueue = new ConcurrentLinkedQueue<>();
@@ -0,0 +1,560 @@
+/*
+ * Copyright (c) 2015. Simas Abramovas
+ *
+ * This file is part of VersatileViewPager.
+ *
+ * VersatileViewPager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VersatileViewPager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VersatileViewPager. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simas.versatileviewpager;
+
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.support.annotation.Nullable;
+import android.support.v4.view.PagerAdapter;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Base of the adapters that {@link VersatileViewPager} works with. It keeps the item count, which
+ * the pager switches to during its removal transition, and the positions of the pages that are
+ * currently alive. Pages are either fragments, see {@link VersatilePagerAdapter}, or plain views,
+ * see {@link VersatileViewAdapter}. Remember that the item at position 0 is always the empty item.
+ */
+public abstract class VersatileAdapter extends PagerAdapter {
+
+	private Object mPrimaryItem;
+	private DataSetObservable mInternalObserver = new DataSetObservable();
+	private int mCount, mRealCount;
+	/**
+	 * Positions of the pages that are currently alive. Used to resolve {@link
+	 * #getItemPosition(Object)} without walking through all of the items.
+	 */
+	final Map<Object, Integer> mPositions = new IdentityHashMap<>();
+	/**
+	 * Lowest position that was affected by a removal, insertion or a move since the last {@link
+	 * #notifyDataSetChanged()}. Items placed before it have kept their positions.
+	 */
+	private int mFirstChangedPosition = Integer.MAX_VALUE;
+	/**
+	 * Incremented with every change of the data set, so that work based on an older data set can
+	 * tell that it's stale.
+	 */
+	int mModCount;
+	private PageContentBinder mContentBinder;
+	/**
+	 * Pages that have been instantiated but whose content hasn't been bound yet.
+	 */
+	private final ArrayList<Object> mPendingBinds = new ArrayList<>();
+	private boolean mScrolling;
+	private PageLifecycleCallbacks mLifecycleCallbacks;
+	/**
+	 * Page that was last reported as resumed and the object it was reported with.
+	 */
+	private Object mResumedPage, mResumedTarget;
+
+	/**
+	 * Binds the expensive content of the pages, e.g. decodes images or starts loaders, once the
+	 * pager stops scrolling. Until then, pages should only show a cheap skeleton.
+	 */
+	public interface PageContentBinder {
+		/**
+		 * Bind the content of a page. Called on the main thread while the pager is idle, starting
+		 * with the primary item and continuing with the pages closest to it.
+		 * @param page        the page's fragment for {@link VersatilePagerAdapter}, or its view for
+		 *                    {@link VersatileViewAdapter}
+		 * @param position    current position of the page's item
+		 */
+		void onBindContent(Object page, int position);
+	}
+
+	/**
+	 * Tells the pages when they become and stop being the primary item, so that only the primary
+	 * page runs things like animations, video playback or sensors, while its neighbours stay idle.
+	 */
+	public interface PageLifecycleCallbacks {
+		/**
+		 * The page became the primary item.
+		 * @param page    the page's fragment for {@link VersatilePagerAdapter}, or its view for
+		 *                {@link VersatileViewAdapter}
+		 */
+		void onPageResumed(Object page);
+
+		/**
+		 * The page stopped being the primary item or is being destroyed. Called with the same
+		 * object as the preceding {@link #onPageResumed(Object)}.
+		 */
+		void onPagePaused(Object page);
+	}
+
+	VersatileAdapter() {}
+
+	/**
+	 * Report the primary page changes to the given callbacks. The current primary page, if any, is
+	 * reported as resumed right away. Null removes the callbacks, after reporting the primary page
+	 * as paused.
+	 */
+	public void setPageLifecycleCallbacks(@Nullable PageLifecycleCallbacks callbacks) {
+		pausePage(mResumedPage);
+		mLifecycleCallbacks = callbacks;
+		resumePage(mPrimaryItem);
+	}
+
+	/**
+	 * Defer binding the content of the pages while the pager is scrolling. Every page that is
+	 * instantiated from now on, except for the empty item, is bound by the given binder once the
+	 * pager becomes idle. Null disables the deferred binding, which is the default.
+	 */
+	public void setPageContentBinder(@Nullable PageContentBinder binder) {
+		mContentBinder = binder;
+		if (binder == null) {
+			mPendingBinds.clear();
+		}
+	}
+
+	/**
+	 * Drop whatever the adapter keeps for the items that aren't alive, according to the given
+	 * {@link android.content.ComponentCallbacks2} memory trim level. {@link VersatileViewPager}
+	 * forwards the trim levels on its own while it's attached to a window (API 14+). Does nothing
+	 * by default.
+	 */
+	public void onTrimMemory(int level) {}
+
+	/**
+	 * Called by the pager when its activity is finishing, so whatever is kept for a restore can
+	 * be dropped.
+	 */
+	void onHostFinishing() {}
+
+	/**
+	 * Remove the page that is connected to this position, also clear whatever is kept for it.<br/>
+	 * This method must be called <b>before</b> notifying the internal observers with {@link
+	 * #setCount(int)}.
+	 */
+	public void onItemRemoved(int position) {
+		removePages(position, position + 1);
+		removeStoredRange(position, 1);
+		shiftPositions(position + 1, -1);
+		markChanged(position);
+	}
+
+	/**
+	 * Remove the items at the given positions in a single pass and notify the internal observers.
+	 * All the positions refer to the data set as it was before this call, so there's no need to
+	 * account for the shifting that the removals cause. Unlike {@link #onItemRemoved(int)}, this
+	 * also updates the count, i.e. {@link #setCount(int)} must not be called for these removals.
+	 * @param positions    positions to remove in any order, duplicates are ignored
+	 */
+	public void onItemsRemoved(int... positions) {
+		// Sort and drop duplicates
+		int[] sorted = positions.clone();
+		Arrays.sort(sorted);
+		int count = 0;
+		for (int position : sorted) {
+			checkPosition(position);
+			if (count == 0 || sorted[count - 1] != position) {
+				sorted[count++] = position;
+			}
+		}
+		if (count == 0) return;
+		int[] removed = new int[count];
+		System.arraycopy(sorted, 0, removed, 0, count);
+
+		// Live pages are either removed or move back by the amount of removed positions in front
+		Iterator<Map.Entry<Object, Integer>> it = mPositions.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Object, Integer> entry = it.next();
+			int index = Arrays.binarySearch(removed, entry.getValue());
+			if (index >= 0) {
+				onPageRemoved(entry.getKey());
+				it.remove();
+			} else {
+				entry.setValue(entry.getValue() + index + 1);
+			}
+		}
+		removeStored(removed, count);
+		markChanged(removed[0]);
+
+		mRealCount -= count;
+		notifyDataSetChangedInternal();
+	}
+
+	/**
+	 * Remove {@code count} items starting at {@code start} and notify the internal observers. The
+	 * count is updated as well, same as with {@link #onItemsRemoved(int...)}.
+	 */
+	public void onItemRangeRemoved(int start, int count) {
+		if (count < 0) throw new IllegalArgumentException("Count cannot be less than 0!");
+		if (count == 0) return;
+		checkPosition(start);
+		checkPosition(start + count - 1);
+
+		removePages(start, start + count);
+		removeStoredRange(start, count);
+		shiftPositions(start + count, -count);
+		markChanged(start);
+
+		mRealCount -= count;
+		notifyDataSetChangedInternal();
+	}
+
+	/**
+	 * Insert an item at the given position and notify the internal observers. Whatever is kept for
+	 * the items that follow is moved along with them. The count is updated as well, i.e. {@link
+	 * #setCount(int)} must not be called for this insertion.
+	 * @param position    position of the new item, from 1 up to and including the current count
+	 *                    + 1, i.e. the new item may be appended
+	 */
+	public void onItemInserted(int position) {
+		onItemRangeInserted(position, 1);
+	}
+
+	/**
+	 * Insert {@code count} items starting at {@code start} and notify the internal observers. The
+	 * count is updated as well, same as with {@link #onItemInserted(int)}.
+	 */
+	public void onItemRangeInserted(int start, int count) {
+		if (count < 0) throw new IllegalArgumentException("Count cannot be less than 0!");
+		// Inserting right after the last item appends
+		if (start != mRealCount + 1) {
+			checkPosition(start);
+		}
+		if (count == 0) return;
+
+		shiftStored(start, count);
+		shiftPositions(start, count);
+		markChanged(start);
+
+		mRealCount += count;
+		notifyDataSetChangedInternal();
+	}
+
+	/**
+	 * Move the item at {@code from} to {@code to}, together with its page and whatever is kept for
+	 * it, and notify the internal observers. Items in between move by one position to fill the gap.
+	 */
+	public void onItemMoved(int from, int to) {
+		checkPosition(from);
+		checkPosition(to);
+		if (from == to) return;
+
+		Object page = null;
+		for (Map.Entry<Object, Integer> entry : mPositions.entrySet()) {
+			if (entry.getValue() == from) {
+				page = entry.getKey();
+				break;
+			}
+		}
+		moveStored(from, to);
+		if (from < to) {
+			shiftPositions(from + 1, to + 1, -1);
+		} else {
+			shiftPositions(to, from, 1);
+		}
+		if (page != null) {
+			mPositions.put(page, to);
+		}
+		markChanged(Math.min(from, to));
+
+		notifyDataSetChangedInternal();
+	}
+
+	/**
+	 * Set the new item count internally and notify the internal observers. If items are removed,
+	 * {@link #onItemRemoved(int)} must be called before, to get rid of their pages.
+	 * The internal observers will call {@link #notifyDataSetChanged()} on their own.
+	 */
+	public final void setCount(int count) {
+		if (count < 0) throw new IllegalArgumentException("Count cannot be less than 0!");
+		mRealCount = count;
+		++mModCount;
+		notifyDataSetChangedInternal();
+	}
+
+	@Override
+	public final int getCount() {
+		return mCount + 1;
+	}
+
+	@Override
+	public int getItemPosition(@Nullable Object object) {
+		if (object != null) {
+			Integer position = mPositions.get(object);
+			if (position != null) {
+				// Items in front of the first change are left where ViewPager already has them
+				return (position < mFirstChangedPosition) ? POSITION_UNCHANGED : position;
+			}
+		}
+		return POSITION_NONE;
+	}
+
+	@Override
+	public void notifyDataSetChanged() {
+		super.notifyDataSetChanged();
+		// Observers have re-evaluated the positions, so the pending changes are now applied
+		mFirstChangedPosition = Integer.MAX_VALUE;
+	}
+
+	@Override
+	public void setPrimaryItem(ViewGroup container, int position, Object object) {
+		super.setPrimaryItem(container, position, object);
+		mPrimaryItem = object;
+		if (object != mResumedPage) {
+			pausePage(mResumedPage);
+			resumePage(object);
+		}
+	}
+
+	/**
+	 * Report the page as paused if it's the resumed one. Subclasses call this when destroying
+	 * pages.
+	 */
+	void pausePage(Object page) {
+		if (page != null && page == mResumedPage) {
+			if (mLifecycleCallbacks != null) {
+				mLifecycleCallbacks.onPagePaused(mResumedTarget);
+			}
+			mResumedPage = mResumedTarget = null;
+		}
+	}
+
+	private void resumePage(Object page) {
+		if (page != null && mLifecycleCallbacks != null) {
+			mResumedPage = page;
+			mResumedTarget = getPageTarget(page);
+			mLifecycleCallbacks.onPageResumed(mResumedTarget);
+		}
+	}
+
+	/**
+	 * Bind the pending pages right away when the pager isn't scrolling. Subclasses have to call
+	 * through after the pages are ready.
+	 */
+	@Override
+	public void finishUpdate(ViewGroup container) {
+		super.finishUpdate(container);
+		bindIfIdle();
+	}
+
+	/**
+	 * Queue the content binding of a page that was just instantiated, see {@link
+	 * #setPageContentBinder(PageContentBinder)}.
+	 */
+	void requestBind(Object page) {
+		if (mContentBinder != null && !mPendingBinds.contains(page)) {
+			mPendingBinds.add(page);
+		}
+	}
+
+	/**
+	 * Bind the pending pages, unless the pager is scrolling.
+	 */
+	void bindIfIdle() {
+		if (!mScrolling) {
+			dispatchPendingBinds();
+		}
+	}
+
+	/**
+	 * @return the object that is handed to the {@link PageContentBinder} and the {@link
+	 * PageLifecycleCallbacks} for the given page
+	 */
+	Object getPageTarget(Object page) {
+		return page;
+	}
+
+	/**
+	 * Called by the pager whenever its scroll state changes between idle and scrolling.
+	 */
+	void setScrolling(boolean scrolling) {
+		mScrolling = scrolling;
+		if (!scrolling) {
+			dispatchPendingBinds();
+		}
+	}
+
+	/**
+	 * Bind the pending pages that are still alive, the primary item first and the rest ordered
+	 * by their distance from it.
+	 */
+	private void dispatchPendingBinds() {
+		if (mPendingBinds.isEmpty() || mContentBinder == null) return;
+		Integer primary = mPositions.get(mPrimaryItem);
+		final int primaryPosition = (primary == null) ? 0 : primary;
+		ArrayList<Object> pages = new ArrayList<>(mPendingBinds);
+		mPendingBinds.clear();
+		Collections.sort(pages, new Comparator<Object>() {
+			@Override
+			public int compare(Object lhs, Object rhs) {
+				return distance(lhs) - distance(rhs);
+			}
+
+			private int distance(Object page) {
+				Integer position = mPositions.get(page);
+				return (position == null) ? Integer.MAX_VALUE : Math.abs(position - primaryPosition);
+			}
+		});
+		for (Object page : pages) {
+			// Pages might be destroyed by the binds that precede them
+			Integer position = mPositions.get(page);
+			if (position != null) {
+				mContentBinder.onBindContent(getPageTarget(page), position);
+			}
+		}
+	}
+
+	/**
+	 * Queue the removal of a live page whose item was removed. It's no longer tracked afterwards.
+	 */
+	abstract void onPageRemoved(Object page);
+
+	/**
+	 * @return the root view of a live page or null if it has none yet
+	 */
+	abstract View getPageView(Object page);
+
+	/**
+	 * Remove whatever is kept for the items in the range {@code [start, start + count)} and move
+	 * the following ones back by {@code count}.
+	 */
+	void removeStoredRange(int start, int count) {}
+
+	/**
+	 * Remove whatever is kept for the given items and move the rest back by the amount of removed
+	 * positions that preceded them.
+	 * @param removed    sorted positions without duplicates
+	 * @param count      amount of positions to use from {@code removed}
+	 */
+	void removeStored(int[] removed, int count) {}
+
+	/**
+	 * Move whatever is kept for the items at {@code start} and after it by {@code count}.
+	 */
+	void shiftStored(int start, int count) {}
+
+	/**
+	 * Move whatever is kept for the item at {@code from} to {@code to}, see {@link
+	 * PositionArray#move(int, int)}.
+	 */
+	void moveStored(int from, int to) {}
+
+	/**
+	 * Remove the live pages in the range {@code [from, to)}.
+	 */
+	private void removePages(int from, int to) {
+		Iterator<Map.Entry<Object, Integer>> it = mPositions.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Object, Integer> entry = it.next();
+			if (entry.getValue() >= from && entry.getValue() < to) {
+				onPageRemoved(entry.getKey());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Add {@code delta} to the positions of live pages that are at {@code from} or after it.
+	 */
+	private void shiftPositions(int from, int delta) {
+		shiftPositions(from, Integer.MAX_VALUE, delta);
+	}
+
+	/**
+	 * Add {@code delta} to the positions of live pages that are in the range {@code [from, to)}.
+	 */
+	private void shiftPositions(int from, int to, int delta) {
+		for (Map.Entry<Object, Integer> entry : mPositions.entrySet()) {
+			int position = entry.getValue();
+			if (position >= from && position < to) {
+				entry.setValue(position + delta);
+			}
+		}
+	}
+
+	private void checkPosition(int position) {
+		// 0th position is the empty item
+		if (position < 1 || position > mRealCount) {
+			throw new IndexOutOfBoundsException("Invalid item position " + position + "!");
+		}
+	}
+
+	/**
+	 * Mark the given position, and all the positions after it, as changed until the next {@link
+	 * #notifyDataSetChanged()}.
+	 */
+	void markChanged(int position) {
+		mFirstChangedPosition = Math.min(mFirstChangedPosition, position);
+		++mModCount;
+	}
+
+	Object getPrimaryItem() {
+		return mPrimaryItem;
+	}
+
+	/**
+	 * @return the position of the live page that the given view belongs to, or {@link
+	 * #POSITION_NONE} if there's no such page
+	 */
+	int getLivePosition(View view) {
+		for (Map.Entry<Object, Integer> entry : mPositions.entrySet()) {
+			if (isViewFromObject(view, entry.getKey())) {
+				return entry.getValue();
+			}
+		}
+		return POSITION_NONE;
+	}
+
+	int getRealCount() {
+		return mRealCount;
+	}
+
+	/**
+	 * Change the real count without notifying, for the subclasses that notify on their own.
+	 */
+	void setRealCount(int count) {
+		mRealCount = count;
+	}
+
+	/**
+	 * Set both of the counts to the restored one and notify the observers.
+	 */
+	void restoreCount(int count) {
+		mRealCount = mCount = count;
+		notifyDataSetChanged();
+	}
+
+	void useRealCount() {
+		mCount = mRealCount;
+	}
+
+	void notifyDataSetChangedInternal() {
+		mInternalObserver.notifyChanged();
+	}
+
+	void registerDataSetObserverInternal(DataSetObserver observer) {
+		mInternalObserver.registerObserver(observer);
+	}
+
+	void unregisterDataSetObserverInternal(DataSetObserver observer) {
+		mInternalObserver.unregisterObserver(observer);
+	}
+
+}
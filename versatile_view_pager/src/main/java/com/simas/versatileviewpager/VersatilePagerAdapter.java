@@ -18,48 +18,118 @@
  */
 package com.simas.versatileviewpager;
 
-import android.database.DataSetObservable;
-import android.database.DataSetObserver;
+import android.content.ComponentCallbacks2;
 import android.os.Bundle;
-import android.os.Parcel;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcelable;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
-import android.support.v4.view.PagerAdapter;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * Custom pager adapter that is based on {@link android.support.v4.app.FragmentStatePagerAdapter}.
  * In addition this gives more freedom in fetching and deleting fragments and their states.
- * Remember that the item at position 0 is always the empty item.
+ * Remember that the item at position 0 is always the empty item. For pages that don't need to be
+ * fragments, see {@link VersatileViewAdapter}.
  */
-public abstract class VersatilePagerAdapter extends PagerAdapter {
+public abstract class VersatilePagerAdapter extends VersatileAdapter {
 
-	private static final String STATE_ITEMS = "items";
+	private static final String STATE_ARCHIVE = "archive";
+	private static final String STATE_FRAGMENT_POSITIONS = "fragment_positions";
+	private static final String STATE_SPILL_FILE = "spill_file";
+	private static final String STATE_POOL_TYPES = "pool_types";
+	private static final String SPILL_FILE_PREFIX = "versatile_pager_states";
+	/**
+	 * Spill files that haven't been written for this long are assumed to belong to adapters that
+	 * will never be restored.
+	 */
+	private static final long STALE_SPILL_AGE = 7L * 24 * 60 * 60 * 1000;
+	private static final long NO_ID = -1;
+	/**
+	 * Saved states of items that are this close to the primary item are evicted last.
+	 */
+	private static final int NEAR_DISTANCE = 2;
+	/**
+	 * Maximum amount of detached fragments that are pooled for every view type.
+	 */
+	private static final int MAX_POOL_SIZE = 3;
+	/**
+	 * Computes the differences of {@link #submitList(long[], long[])} calls off the main thread.
+	 */
+	private static Executor sDiffExecutor;
+	/**
+	 * Spill files of the adapters in this process, which are never deleted as stale.
+	 */
+	private static final HashSet<File> sSpillFilesInUse = new HashSet<>();
+	/**
+	 * Spill directories that were already cleaned of stale files in this process.
+	 */
+	private static final HashSet<File> sCleanedDirectories = new HashSet<>();
 	private static final String STATE_COUNT = "count";
+	/**
+	 * Fragment's view state that is saved on detach, see {@link #clearSavedViewState(Fragment)}.
+	 */
+	private static Field sSavedViewState;
+	private static boolean sSavedViewStateResolved;
 	private final String TAG = getClass().getName();
 	private final FragmentManager mFragmentManager;
 	private FragmentTransaction mCurTransaction = null;
-	private Object mPrimaryItem;
-	private DataSetObservable mInternalObserver = new DataSetObservable();
-	private int mCount, mRealCount;
-	private ArrayList<Item> mItems = new ArrayList<Item>() {
+	/**
+	 * Only the positions that hold a fragment or a saved state have an {@link Item}.
+	 */
+	private PositionArray<Item> mItems = new PositionArray<>();
+	private int mSavedStateLimit = Integer.MAX_VALUE;
+	/**
+	 * Items that have no fragment but hold an unmarshalled saved state, least recently used first.
+	 * Only these states take up the heap, so they're the ones that are evicted.
+	 */
+	private final LinkedHashMap<Item, Boolean> mSavedStates = new LinkedHashMap<>(16, 0.75f, true);
+	private File mSpillDirectory;
+	/**
+	 * File this adapter spills to. Every save overwrites it, so there's only one per adapter.
+	 */
+	private File mSpillFile;
+	/**
+	 * Archive that was last spilled or restored from. Items that haven't changed since, still
+	 * point to their entries in it, so they don't need to be marshalled again. Archives that are
+	 * saved into the Bundle aren't kept, as their bytes would duplicate the live states.
+	 */
+	private SavedStateArchive mSnapshot;
+	private ClassLoader mLoader;
+	private Handler mMainHandler;
+	private boolean mRecycling;
+	private boolean mDeferredCommits;
+	/**
+	 * Binds the pending pages once a deferred commit has been executed.
+	 */
+	private final Runnable mBindAfterCommit = new Runnable() {
 		@Override
-		public Item get(int index) {
-			// Return null for negative indexes
-			if (index < 0) return null;
-			// Lazy instantiate items if they're not present in the list
-			while (index >= size()) {
-				add(new Item());
-			}
-			return super.get(index);
+		public void run() {
+			bindIfIdle();
 		}
 	};
+	/**
+	 * Detached fragments that can be rebound to other positions, grouped by their view type.
+	 */
+	private final SparseArray<ArrayList<Fragment>> mPool = new SparseArray<>();
 
 	public VersatilePagerAdapter(FragmentManager fm) {
 		mFragmentManager = fm;
@@ -71,51 +141,457 @@ public abstract class VersatilePagerAdapter extends PagerAdapter {
 	public abstract Fragment createItem(int position);
 
 	/**
-	 * Get the item for the specific position. Return null if not yet created or has been cached.
+	 * Bind a recycled fragment to a new position. Only called in the recycling mode, see {@link
+	 * #setRecyclingEnabled(boolean)}. The fragment was previously created by {@link
+	 * #createItem(int)} for a position of the same view type. The fragment's view is created
+	 * again after this call, from scratch, as the view state of its previous item is discarded.
 	 */
-	public Fragment getItem(int position) {
-		return mItems.get(position).fragment;
+	public void bindItem(Fragment fragment, int position) {}
+
+	/**
+	 * Return the view type of the item at the given position. Only fragments of the same view type
+	 * are recycled for each other. Returns 0 by default, i.e. all the fragments are the same type.
+	 * Never called for the empty item, whose fragment isn't recycled.
+	 */
+	public int getItemViewType(int position) {
+		return 0;
 	}
 
 	/**
-	 * Remove the fragment that is connected to this position, also clear the fragment's state.<br/>
-	 * This method must be called <b>before</b> notifying the internal observers with {@link
-	 * #setCount(int)}.
+	 * In the recycling mode, fragments of destroyed items are detached and pooled instead of being
+	 * removed. Items that are instantiated later take a fragment of their view type from the pool
+	 * and {@link #bindItem(Fragment, int)} it, instead of calling {@link #createItem(int)}. This
+	 * saves creating and removing fragments when quickly switching through many similar pages.
+	 * Recycled fragments keep their own state, so the per-item saved states aren't kept in this
+	 * mode. Their view states, which the fragment manager saves on detach, are discarded though,
+	 * so the previous item's text fields or scroll positions don't end up on the new one. That's
+	 * done via reflection, so if it fails, fragments aren't recycled. Disabled by default.
 	 */
-	public void onItemRemoved(int position) {
-		if (mCurTransaction == null) {
-			mCurTransaction = mFragmentManager.beginTransaction();
+	public void setRecyclingEnabled(boolean enabled) {
+		mRecycling = enabled;
+		if (!enabled) {
+			// Get rid of the pooled fragments
+			for (int i = 0; i < mPool.size(); ++i) {
+				for (Fragment fragment : mPool.valueAt(i)) {
+					if (mCurTransaction == null) {
+						mCurTransaction = mFragmentManager.beginTransaction();
+					}
+					mCurTransaction.remove(fragment);
+				}
+			}
+			mPool.clear();
 		}
-		if (getItem(position) != null) {
-			mCurTransaction.remove(getItem(position));
+	}
+
+	public boolean isRecyclingEnabled() {
+		return mRecycling;
+	}
+
+	/**
+	 * By default, every populate pass of the pager ends by executing all of the pending fragment
+	 * transactions, including the ones that don't belong to this adapter. With deferred commits,
+	 * the adapter's transaction is only committed and the fragment manager executes it as part of
+	 * its next pass on the main thread. New fragments get their views slightly later, but the
+	 * frame that triggered the populate pass no longer pays for all of the fragment work at once.
+	 * Disabled by default.
+	 */
+	public void setDeferredCommitsEnabled(boolean enabled) {
+		mDeferredCommits = enabled;
+	}
+
+	public boolean isDeferredCommitsEnabled() {
+		return mDeferredCommits;
+	}
+
+	/**
+	 * Return true if {@link #getItemId(int)} returns an identifier that stays with the item
+	 * regardless of its position. This lets {@link #onDataSetReplaced(int)} hand every item's
+	 * fragment and saved state over to its new position. False by default.
+	 */
+	public boolean hasStableIds() {
+		return false;
+	}
+
+	/**
+	 * Return a unique identifier for the item at the given position. Only used when {@link
+	 * #hasStableIds()} returns true, and never called for the empty item at position 0. The
+	 * default implementation returns the position itself.
+	 */
+	public long getItemId(int position) {
+		return position;
+	}
+
+	/**
+	 * Limit the amount of saved states that are kept in memory for the items that currently have
+	 * no fragment. When the limit is exceeded, the least recently used states are dropped, except
+	 * that the states of items near the primary one are dropped last. Items without a saved state
+	 * start from scratch when they're instantiated again. States that are only held by a restored
+	 * or spilled archive aren't unmarshalled yet and don't count. Unlimited by default.
+	 */
+	public void setSavedStateLimit(int limit) {
+		if (limit < 0) throw new IllegalArgumentException("Limit cannot be less than 0!");
+		mSavedStateLimit = limit;
+		trimSavedStates(limit);
+	}
+
+	public int getSavedStateLimit() {
+		return mSavedStateLimit;
+	}
+
+	/**
+	 * Spill the saved states to a file in the given directory, instead of putting them into the
+	 * {@link Bundle} returned by {@link #saveState()}. A few hundred states in a Bundle can exceed
+	 * the binder transaction limit. The Bundle then only holds the file's path, and after a
+	 * restore every state is read back when its item is instantiated again. The application's
+	 * cache directory is a good fit. Null disables spilling, which is the default.<br/>
+	 * The file is deleted when the pager's activity finishes. Files that were left behind, e.g.
+	 * by tasks that were never resumed, are deleted from the directory once they're a week old.
+	 * This happens on the first spill, i.e. after a pending restore, and skips the files of the
+	 * other adapters in the process.
+	 */
+	public void setSavedStateSpillDirectory(@Nullable File directory) {
+		mSpillDirectory = directory;
+	}
+
+	/**
+	 * Drop saved states according to the given {@link ComponentCallbacks2} memory trim level.
+	 * {@link VersatileViewPager} forwards the trim levels on its own while it's attached to a
+	 * window (API 14+).
+	 */
+	@Override
+	public void onTrimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+				level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			// Only keep the states near the primary item
+			int near = 0;
+			for (Item item : getNearItems()) {
+				if (mSavedStates.containsKey(item)) ++near;
+			}
+			trimSavedStates(near);
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
+				level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			// Drop the older half
+			trimSavedStates(Math.min(mSavedStateLimit, mSavedStates.size() / 2));
+		} else {
+			return;
 		}
+		// Entries of the removed items are the only thing to get rid of in the snapshot
+		trimSnapshot();
+	}
 
-		mItems.remove(position);
+	/**
+	 * Get the item for the specific position. Return null if not yet created or has been cached.
+	 */
+	public Fragment getItem(int position) {
+		Item item = mItems.get(position);
+		return (item == null) ? null : item.fragment;
 	}
 
 	/**
-	 * Set the new item count internally and notify the internal observers. If items are removed,
-	 * {@link #onItemRemoved(int)} must be called before, to get rid of fragments and their states.
-	 * The internal observers will call {@link #notifyDataSetChanged()} on their own.
+	 * Replace the whole data set with a new one of the given size and notify the internal
+	 * observers. With {@link #hasStableIds()} the fragments and saved states of the items whose
+	 * ids are still present are moved to their new positions and the rest are removed. Without
+	 * stable ids, all of the items are removed and will be recreated.
 	 */
-	public final void setCount(int count) {
+	public void onDataSetReplaced(int count) {
 		if (count < 0) throw new IllegalArgumentException("Count cannot be less than 0!");
-		mRealCount = count;
+		// 0th position is the empty item and is never replaced
+		Item emptyItem = mItems.get(0);
+		HashMap<Long, Item> survivors = new HashMap<>();
+		for (int i = 0; i < mItems.size(); ++i) {
+			Item item = mItems.valueAt(i);
+			if (mItems.positionAt(i) != 0 && hasStableIds() && item.id != NO_ID) {
+				survivors.put(item.id, item);
+			} else if (mItems.positionAt(i) != 0) {
+				removeItem(item);
+			}
+		}
+		mItems.clear();
+		mPositions.clear();
+		if (emptyItem != null) {
+			putItem(mItems, 0, emptyItem);
+		}
+
+		// Positions are visited in order, so every put is an append
+		for (int position = 1; position <= count && !survivors.isEmpty(); ++position) {
+			Item item = survivors.remove(getItemId(position));
+			if (item != null) {
+				putItem(mItems, position, item);
+			}
+		}
+
+		// Items that are no longer present
+		for (Item item : survivors.values()) {
+			removeItem(item);
+		}
+		markChanged(1);
+
+		setRealCount(count);
 		notifyDataSetChangedInternal();
 	}
 
-	@Override
-	public int getItemPosition(@Nullable Object object) {
-		if (object != null) {
-			// ToDo position unchanged
-			for (int i = 0; i < mItems.size(); ++i) {
-				Item item = mItems.get(i);
-				if (item.fragment == object) {
-					return i;
+	/**
+	 * Replace the data set by comparing the ids of its old and new items. The differences, i.e.
+	 * which items were removed, inserted or moved, are computed on a background thread and then
+	 * applied on the main thread in a single step, followed by a single notification of the
+	 * internal observers. Fragments and saved states follow their items to the new positions.
+	 * <br/>
+	 * A newer submission supersedes the ones that haven't been applied yet. So does any other
+	 * modification of the data set, e.g. {@link #onItemMoved(int, int)} or {@link #setCount(int)},
+	 * as the old ids no longer describe the current items. Superseded submissions are dropped.
+	 * @param oldIds    ids of the current items, where the 0th id belongs to the item at
+	 *                  position 1. Its length must match the current count.
+	 * @param newIds    ids of the new items, in the same manner. Duplicate ids are treated as new
+	 *                  items.
+	 */
+	public void submitList(final long[] oldIds, final long[] newIds) {
+		if (Looper.myLooper() != Looper.getMainLooper()) {
+			throw new IllegalStateException("Must be submitted on the main thread!");
+		} else if (oldIds.length != getRealCount()) {
+			throw new IllegalArgumentException("Old ids must match the current count!");
+		}
+		if (sDiffExecutor == null) {
+			sDiffExecutor = Executors.newSingleThreadExecutor();
+		}
+		if (mMainHandler == null) {
+			mMainHandler = new Handler(Looper.getMainLooper());
+		}
+		// Bumped here as well, so that older submissions are superseded
+		final int generation = ++mModCount;
+		final long[] oldCopy = oldIds.clone(), newCopy = newIds.clone();
+
+		sDiffExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				// Map every new position to the old position of the same item, or to 0 for a new one
+				final int[] newToOld = new int[newCopy.length];
+				HashMap<Long, Integer> oldPositions = new HashMap<>(oldCopy.length * 2);
+				for (int i = oldCopy.length - 1; i >= 0; --i) {
+					oldPositions.put(oldCopy[i], i + 1);
+				}
+				for (int i = 0; i < newCopy.length; ++i) {
+					// Remove the match, so that duplicate ids don't claim the same item
+					Integer oldPosition = oldPositions.remove(newCopy[i]);
+					newToOld[i] = (oldPosition == null) ? 0 : oldPosition;
 				}
+
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						// The data set changed since, so the differences no longer apply
+						if (generation != mModCount) return;
+						applyPositions(newToOld);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Move every item to a new position and remove the ones that aren't present anymore. Then notify
+	 * the internal observers.
+	 * @param newToOld    old position for every new one, where the 0th element holds the old
+	 *                    position of the item at position 1. Values of 0 indicate new items.
+	 */
+	private void applyPositions(int[] newToOld) {
+		PositionArray<Item> items = new PositionArray<>();
+		boolean[] moved = new boolean[mItems.size()];
+		mPositions.clear();
+		// 0th position is the empty item and stays in place
+		if (mItems.size() > 0 && mItems.positionAt(0) == 0) {
+			putItem(items, 0, mItems.valueAt(0));
+			moved[0] = true;
+		}
+		// New positions are visited in order, so every put is an append
+		for (int i = 0; i < newToOld.length; ++i) {
+			if (newToOld[i] == 0) continue;
+			int index = mItems.indexOfFirst(newToOld[i]);
+			if (index < mItems.size() && mItems.positionAt(index) == newToOld[i]) {
+				putItem(items, i + 1, mItems.valueAt(index));
+				moved[index] = true;
+			}
+		}
+		// Whatever is left, is no longer present
+		for (int i = 0; i < mItems.size(); ++i) {
+			if (!moved[i]) {
+				removeItem(mItems.valueAt(i));
+			}
+		}
+		mItems = items;
+		markChanged(1);
+
+		setRealCount(newToOld.length);
+		notifyDataSetChangedInternal();
+	}
+
+	/**
+	 * Release whatever the item holds, once it's no longer part of the data set.
+	 */
+	private void removeItem(Item item) {
+		if (item.fragment != null) {
+			onPageRemoved(item.fragment);
+		}
+		mSavedStates.remove(item);
+	}
+
+	private void putItem(PositionArray<Item> items, int position, Item item) {
+		items.put(position, item);
+		if (item.fragment != null) {
+			mPositions.put(item.fragment, position);
+		}
+	}
+
+	/**
+	 * Detach the fragment and put it into the pool of the given view type, if there's room.
+	 * @return false if the pool is full or pooled fragments can't be reused
+	 */
+	private boolean recycle(Fragment fragment, int viewType) {
+		if (getSavedViewStateField() == null) return false;
+		ArrayList<Fragment> pool = mPool.get(viewType);
+		if (pool == null) {
+			pool = new ArrayList<>(MAX_POOL_SIZE);
+			mPool.put(viewType, pool);
+		} else if (pool.size() >= MAX_POOL_SIZE) {
+			return false;
+		}
+		mCurTransaction.detach(fragment);
+		pool.add(fragment);
+		return true;
+	}
+
+	/**
+	 * Take a fragment of the given view type from the pool. Only fragments whose detachment has
+	 * been executed are taken, as their view state has been saved by then and can be cleared.
+	 * @return the fragment or null if the pool has none
+	 */
+	private Fragment obtainPooled(int viewType) {
+		ArrayList<Fragment> pool = mPool.get(viewType);
+		if (pool == null) return null;
+		for (int i = pool.size() - 1; i >= 0; --i) {
+			Fragment fragment = pool.get(i);
+			if (fragment.isDetached() && clearSavedViewState(fragment)) {
+				return pool.remove(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Discard the view state that the fragment manager saved when the fragment was detached. It
+	 * would otherwise be restored over the views of the item the fragment is bound to next.
+	 * @return false if the state couldn't be cleared
+	 */
+	private boolean clearSavedViewState(Fragment fragment) {
+		Field field = getSavedViewStateField();
+		if (field == null) return false;
+		try {
+			field.set(fragment, null);
+			return true;
+		} catch (IllegalAccessException e) {
+			Log.w(TAG, "Failed to clear the view state of a pooled fragment", e);
+			return false;
+		}
+	}
+
+	private Field getSavedViewStateField() {
+		if (!sSavedViewStateResolved) {
+			sSavedViewStateResolved = true;
+			try {
+				sSavedViewState = Fragment.class.getDeclaredField("mSavedViewState");
+				sSavedViewState.setAccessible(true);
+			} catch (NoSuchFieldException e) {
+				Log.w(TAG, "Fragment's view state isn't accessible, fragments won't be recycled", e);
+			}
+		}
+		return sSavedViewState;
+	}
+
+	/**
+	 * Drop the saved states of the items that have no fragment, until at most {@code limit} of
+	 * them remain in memory. The least recently used states are dropped first, but the ones near
+	 * the primary item are only dropped when there's nothing else left. Items whose states are
+	 * also archived, can still read them back.
+	 */
+	private void trimSavedStates(int limit) {
+		if (mSavedStates.size() <= limit) return;
+		List<Item> near = getNearItems();
+		for (int pass = 0; pass < 2 && mSavedStates.size() > limit; ++pass) {
+			Iterator<Item> iterator = mSavedStates.keySet().iterator();
+			while (mSavedStates.size() > limit && iterator.hasNext()) {
+				Item item = iterator.next();
+				if (pass == 0 && near.contains(item)) continue;
+				iterator.remove();
+				// Items that are left with nothing are pruned on the next save
+				item.state = null;
 			}
 		}
-		return POSITION_NONE;
+	}
+
+	/**
+	 * @return the items that are at most {@link #NEAR_DISTANCE} positions away from the primary one
+	 */
+	private List<Item> getNearItems() {
+		Integer primary = mPositions.get(getPrimaryItem());
+		if (primary == null) return Collections.emptyList();
+		List<Item> near = new ArrayList<>(NEAR_DISTANCE * 2 + 1);
+		for (int position = primary - NEAR_DISTANCE; position <= primary + NEAR_DISTANCE; ++position) {
+			Item item = mItems.get(position);
+			if (item != null) near.add(item);
+		}
+		return near;
+	}
+
+	/**
+	 * Remove the items that have neither a fragment nor a saved state anymore.
+	 */
+	private void pruneItems() {
+		for (int i = mItems.size() - 1; i >= 0; --i) {
+			Item item = mItems.valueAt(i);
+			if (item.fragment == null && !item.hasState()) {
+				mItems.removeAt(i);
+			}
+		}
+	}
+
+	@Override
+	void onPageRemoved(Object page) {
+		if (mCurTransaction == null) {
+			mCurTransaction = mFragmentManager.beginTransaction();
+		}
+		mCurTransaction.remove((Fragment) page);
+	}
+
+	@Override
+	View getPageView(Object page) {
+		return ((Fragment) page).getView();
+	}
+
+	@Override
+	void removeStoredRange(int start, int count) {
+		for (int i = mItems.indexOfFirst(start);
+		     i < mItems.size() && mItems.positionAt(i) < start + count; ++i) {
+			mSavedStates.remove(mItems.valueAt(i));
+		}
+		mItems.removeRange(start, count);
+	}
+
+	@Override
+	void removeStored(int[] removed, int count) {
+		for (int i = 0; i < count && !mSavedStates.isEmpty(); ++i) {
+			Item item = mItems.get(removed[i]);
+			if (item != null) mSavedStates.remove(item);
+		}
+		mItems.removeAll(removed, count);
+	}
+
+	@Override
+	void shiftStored(int start, int count) {
+		mItems.shift(start, count);
+	}
+
+	@Override
+	void moveStored(int from, int to) {
+		mItems.move(from, to);
 	}
 
 	@Override
@@ -130,31 +606,74 @@ public abstract class VersatilePagerAdapter extends PagerAdapter {
 		if (position > getRealCount()) return null;
 
 		Item item = mItems.get(position);
-		if (item.fragment != null) {
+		if (item == null) {
+			item = new Item();
+			// Ids belong to the real items, the empty item doesn't have one
+			if (hasStableIds() && position != 0) {
+				item.id = getItemId(position);
+			}
+			mItems.put(position, item);
+		} else if (item.fragment != null) {
 			return item.fragment;
+		}
+		// The fragment will hold the state from now on
+		mSavedStates.remove(item);
+
+		// The empty item is never pooled, nor bound to anything else
+		Fragment recycled = (mRecycling && position != 0) ?
+				obtainPooled(getItemViewType(position)) : null;
+		if (recycled != null) {
+			item.fragment = recycled;
+			mCurTransaction.attach(recycled);
+			bindItem(recycled, position);
 		} else {
 			item.fragment = createItem(position);
+			Fragment.SavedState state = getState(item);
+			if (state != null) {
+				item.fragment.setInitialSavedState(state);
+			}
+			mCurTransaction.add(container.getId(), item.fragment);
 		}
-
-		if (item.state != null) {
-			item.fragment.setInitialSavedState(item.state);
+		mPositions.put(item.fragment, position);
+		if (position != 0) {
+			requestBind(item.fragment);
 		}
 
 		item.fragment.setMenuVisibility(false);
 		item.fragment.setUserVisibleHint(false);
 
-		mCurTransaction.add(container.getId(), item.fragment);
-
 		return item.fragment;
 	}
 
 	@Override
 	public void destroyItem(ViewGroup container, int position, Object object) {
+		pausePage(object);
+		// ViewPager's position may predate a removal, so use the one this adapter tracks. Untracked
+		// fragments have already been removed together with their items.
+		Integer current = mPositions.get(object);
+		if (current == null) return;
+		position = current;
 		Item item = mItems.get(position);
-		if (item.fragment != null) {
-			item.state = mFragmentManager.saveFragmentInstanceState(item.fragment);
+		if (item != null && item.fragment != null && mRecycling && position != 0 &&
+				recycle(item.fragment, getItemViewType(position))) {
+			// The fragment keeps its own state, so there's nothing left to keep for the item
+			mPositions.remove(item.fragment);
+			mItems.remove(position);
+		} else if (item != null && item.fragment != null) {
+			// Fragments whose addition hasn't been executed yet, have nothing new to save
+			if (item.fragment.isAdded()) {
+				item.state = mFragmentManager.saveFragmentInstanceState(item.fragment);
+				item.archive = null;
+			}
 			mCurTransaction.remove(item.fragment);
+			mPositions.remove(item.fragment);
 			item.fragment = null;
+			if (!item.hasState()) {
+				mItems.remove(position);
+			} else if (item.state != null) {
+				mSavedStates.put(item, Boolean.TRUE);
+				trimSavedStates(mSavedStateLimit);
+			}
 		}
 	}
 
@@ -162,45 +681,100 @@ public abstract class VersatilePagerAdapter extends PagerAdapter {
 	public void finishUpdate(ViewGroup container) {
 		mCurTransaction.commitAllowingStateLoss();
 		mCurTransaction = null;
-		mFragmentManager.executePendingTransactions();
-	}
-
-	@Override
-	public boolean isViewFromObject(View view, Object object) {
-		if (object == null || view == null || ((Fragment)object).getView() != view) {
-			return false;
+		if (mDeferredCommits) {
+			// Posted after the fragment manager's own execution, so the views exist by then
+			container.post(mBindAfterCommit);
 		} else {
-			return true;
+			mFragmentManager.executePendingTransactions();
+			super.finishUpdate(container);
 		}
 	}
 
+	/**
+	 * Only the primary fragment has its menu and user visible hint enabled. Fragments that keep
+	 * their expensive work to the time they're visible, or to {@link
+	 * #setPageLifecycleCallbacks(PageLifecycleCallbacks)}, are idle while offscreen.
+	 */
 	@Override
 	public void setPrimaryItem(ViewGroup container, int position, Object object) {
+		Object previous = getPrimaryItem();
+		if (object != previous) {
+			if (previous != null) {
+				((Fragment) previous).setMenuVisibility(false);
+				((Fragment) previous).setUserVisibleHint(false);
+			}
+			if (object != null) {
+				((Fragment) object).setMenuVisibility(true);
+				((Fragment) object).setUserVisibleHint(true);
+			}
+		}
 		super.setPrimaryItem(container, position, object);
-		mPrimaryItem = object;
 	}
 
-	Object getPrimaryItem() {
-		return mPrimaryItem;
+	@Override
+	public boolean isViewFromObject(View view, Object object) {
+		if (object == null || view == null || ((Fragment)object).getView() != view) {
+			return false;
+		} else {
+			return true;
+		}
 	}
 
 	@Override
 	public final Parcelable saveState() {
 		Bundle state = new Bundle();
-		// Save items
+		// Save item states
 		if (mItems.size() > 0) {
-			state.putParcelableArrayList(STATE_ITEMS, mItems);
-
-			// Save fragment references
+			int[] fragmentPositions = new int[mItems.size()];
+			int fragmentCount = 0;
 			for (int i=0; i<mItems.size(); i++) {
-				Fragment f = mItems.get(i).fragment;
+				// Save fragment references
+				Fragment f = mItems.valueAt(i).fragment;
 				if (f != null && f.isAdded()) {
-					String key = "f" + i;
-					mFragmentManager.putFragment(state, key, f);
+					mFragmentManager.putFragment(state, "f" + mItems.positionAt(i), f);
+					fragmentPositions[fragmentCount++] = mItems.positionAt(i);
 				}
 			}
+			int[] savedFragments = new int[fragmentCount];
+			System.arraycopy(fragmentPositions, 0, savedFragments, 0, fragmentCount);
+			state.putIntArray(STATE_FRAGMENT_POSITIONS, savedFragments);
+
+			// Nothing to marshall if none of the items changed since the last save
+			pruneItems();
+			SavedStateArchive archive = mSnapshot;
+			if (!isSnapshotCurrent()) {
+				int[] positions = new int[mItems.size()];
+				long[] ids = new long[mItems.size()];
+				int[] sources = new int[mItems.size()];
+				byte[][] data = new byte[mItems.size()][];
+				for (int i = 0; i < mItems.size(); ++i) {
+					Item item = mItems.valueAt(i);
+					positions[i] = mItems.positionAt(i);
+					ids[i] = item.id;
+					// Clean entries of the snapshot are copied over in bulk, only the rest is marshalled
+					if (mSnapshot != null && item.archive == mSnapshot) {
+						sources[i] = item.archiveIndex;
+					} else {
+						sources[i] = -1;
+						data[i] = marshallState(item);
+					}
+				}
+				archive = archiveStates(positions, ids, sources, data);
+				if (archive.getFile() != null) {
+					setSnapshot(archive);
+				} else {
+					trimSnapshot();
+				}
+			}
+
+			if (archive.getFile() != null) {
+				state.putString(STATE_SPILL_FILE, archive.getFile().getAbsolutePath());
+			} else {
+				state.putByteArray(STATE_ARCHIVE, archive.getBytes());
+			}
 		}
-		state.putInt(STATE_COUNT, mCount);
+		savePool(state);
+		state.putInt(STATE_COUNT, getCount() - 1);
 		return state;
 	}
 
@@ -210,87 +784,304 @@ public abstract class VersatilePagerAdapter extends PagerAdapter {
 		if (state != null) {
 			final Bundle bundle = (Bundle)state;
 			bundle.setClassLoader(loader);
+			mLoader = loader;
 			mItems.clear();
-			if (bundle.getParcelableArrayList(STATE_ITEMS) != null) {
-				mItems = bundle.getParcelableArrayList(STATE_ITEMS);
-			}
-			Iterable<String> keys = bundle.keySet();
-			for (String key: keys) {
-				if (key.startsWith("f")) {
-					int index = Integer.parseInt(key.substring(1));
-					Fragment f = mFragmentManager.getFragment(bundle, key);
+			mPositions.clear();
+			mSavedStates.clear();
+			// Only the index is read here, states are unmarshalled when their items are instantiated
+			try {
+				String spillFile = bundle.getString(STATE_SPILL_FILE);
+				byte[] bytes = bundle.getByteArray(STATE_ARCHIVE);
+				if (spillFile != null) {
+					restoreItems(SavedStateArchive.open(new File(spillFile)));
+				} else if (bytes != null) {
+					restoreItems(SavedStateArchive.open(bytes));
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to restore the saved states", e);
+			}
+
+			int[] fragmentPositions = bundle.getIntArray(STATE_FRAGMENT_POSITIONS);
+			if (fragmentPositions != null) {
+				for (int position : fragmentPositions) {
+					Fragment f = mFragmentManager.getFragment(bundle, "f" + position);
 					if (f != null) {
 						f.setMenuVisibility(false);
-						mItems.get(index).fragment = f;
+						Item item = mItems.get(position);
+						if (item == null) {
+							item = new Item();
+							mItems.put(position, item);
+						}
+						item.fragment = f;
+						mPositions.put(f, position);
 					} else {
-						Log.w(TAG, "Bad fragment at key " + key);
+						Log.w(TAG, "Bad fragment at position " + position);
 					}
 				}
 			}
+			restorePool(bundle);
 			int count = bundle.getInt(STATE_COUNT, 0);
 			if (count > 0) {
-				mRealCount = mCount = count;
-				notifyDataSetChanged();
+				restoreCount(count);
 			}
 		}
 	}
 
-	private static class Item implements Parcelable {
-		private Fragment fragment;
-		private Fragment.SavedState state;
+	/**
+	 * Pooled fragments are detached but still belong to the fragment manager, so keep references
+	 * to them, to have them back in the pool after a restore.
+	 */
+	private void savePool(Bundle bundle) {
+		ArrayList<Integer> types = new ArrayList<>();
+		for (int i = 0; i < mPool.size(); ++i) {
+			for (Fragment fragment : mPool.valueAt(i)) {
+				mFragmentManager.putFragment(bundle, "p" + types.size(), fragment);
+				types.add(mPool.keyAt(i));
+			}
+		}
+		if (types.size() > 0) {
+			int[] poolTypes = new int[types.size()];
+			for (int i = 0; i < poolTypes.length; ++i) {
+				poolTypes[i] = types.get(i);
+			}
+			bundle.putIntArray(STATE_POOL_TYPES, poolTypes);
+		}
+	}
 
-		public Item() {}
+	private void restorePool(Bundle bundle) {
+		mPool.clear();
+		int[] poolTypes = bundle.getIntArray(STATE_POOL_TYPES);
+		if (poolTypes == null) return;
+		for (int i = 0; i < poolTypes.length; ++i) {
+			Fragment fragment = mFragmentManager.getFragment(bundle, "p" + i);
+			if (fragment == null) {
+				Log.w(TAG, "Bad pooled fragment at index " + i);
+				continue;
+			}
+			fragment.setMenuVisibility(false);
+			ArrayList<Fragment> pool = mPool.get(poolTypes[i]);
+			if (pool == null) {
+				pool = new ArrayList<>(MAX_POOL_SIZE);
+				mPool.put(poolTypes[i], pool);
+			}
+			pool.add(fragment);
+		}
+	}
 
-		protected Item(Parcel in) {
-			state = in.readParcelable(Fragment.SavedState.class.getClassLoader());
+	/**
+	 * @return true if {@link #mSnapshot} holds exactly the current items and their states
+	 */
+	private boolean isSnapshotCurrent() {
+		if (mSnapshot == null || mSnapshot.size() != mItems.size() ||
+				(mSnapshot.getFile() != null) != (mSpillDirectory != null)) {
+			return false;
+		}
+		for (int i = 0; i < mItems.size(); ++i) {
+			Item item = mItems.valueAt(i);
+			if (item.archive != mSnapshot || item.archiveIndex != i ||
+					mSnapshot.positionAt(i) != mItems.positionAt(i)) {
+				return false;
+			}
 		}
+		return true;
+	}
 
-		public static final Creator<Item> CREATOR = new Creator<Item>() {
-			@Override
-			public Item createFromParcel(Parcel in) {
-				return new Item(in);
+	/**
+	 * Marshall the item's state. If the state hasn't changed since it was archived, its archived
+	 * bytes are copied instead.
+	 */
+	private byte[] marshallState(Item item) {
+		if (item.archive != null) {
+			try {
+				return item.archive.readBytes(item.archiveIndex);
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to read a saved state", e);
+				item.archive = null;
 			}
+		}
+		return SavedStateArchive.marshall(item.state);
+	}
 
-			@Override
-			public Item[] newArray(int size) {
-				return new Item[size];
+	/**
+	 * Build the next snapshot, either in the adapter's spill file or in memory.
+	 * @param sources index of the item's entry in {@link #mSnapshot} or -1 if its state is in
+	 *                {@code data}
+	 */
+	private SavedStateArchive archiveStates(int[] positions, long[] ids, int[] sources,
+	                                        byte[][] data) {
+		if (mSpillDirectory != null) {
+			try {
+				if (sCleanedDirectories.add(mSpillDirectory)) {
+					deleteStaleSpillFiles(mSpillDirectory);
+				}
+				if (mSpillFile == null || !mSpillDirectory.equals(mSpillFile.getParentFile())) {
+					setSpillFile(File.createTempFile(SPILL_FILE_PREFIX, null, mSpillDirectory));
+				}
+				return SavedStateArchive.write(mSpillFile, mSnapshot, positions, ids, sources, data);
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to spill the saved states, putting them into the bundle instead", e);
 			}
-		};
+		}
+		try {
+			return SavedStateArchive.create(mSnapshot, positions, ids, sources, data);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to copy the saved states, marshalling them one by one", e);
+			for (int i = 0; i < sources.length; ++i) {
+				if (sources[i] >= 0) {
+					data[i] = marshallState(mItems.valueAt(i));
+				}
+			}
+			return SavedStateArchive.create(positions, ids, data);
+		}
+	}
 
-		@Override
-		public int describeContents() {
-			return 0;
+	/**
+	 * Make the given archive the snapshot of the current items. Items are pointed to their
+	 * entries, which stay valid until their states change, and the previous snapshot is dropped.
+	 */
+	private void setSnapshot(SavedStateArchive archive) {
+		for (int i = 0; i < mItems.size(); ++i) {
+			Item item = mItems.valueAt(i);
+			item.archive = archive;
+			item.archiveIndex = i;
+		}
+		// The spill file is overwritten in place, only a file that was spilled elsewhere is stale
+		File previous = (mSnapshot == null) ? null : mSnapshot.getFile();
+		if (previous != null && !previous.equals(archive.getFile())) {
+			previous.delete();
 		}
+		mSnapshot = archive;
+	}
 
-		@Override
-		public void writeToParcel(Parcel dest, int flags) {
-			dest.writeParcelable(state, flags);
+	/**
+	 * An in-memory snapshot, i.e. a restored Bundle archive, takes up the heap. Only keep the
+	 * entries that items still read their states from, and drop it once there are none.
+	 */
+	private void trimSnapshot() {
+		if (mSnapshot == null || mSnapshot.getFile() != null) return;
+		int referenced = 0;
+		for (int i = 0; i < mItems.size(); ++i) {
+			if (mItems.valueAt(i).archive == mSnapshot) ++referenced;
 		}
+		if (referenced == 0) {
+			mSnapshot = null;
+			return;
+		} else if (referenced == mSnapshot.size()) {
+			return;
+		}
+
+		int[] positions = new int[referenced];
+		long[] ids = new long[referenced];
+		int[] sources = new int[referenced];
+		for (int i = 0, k = 0; i < mItems.size(); ++i) {
+			Item item = mItems.valueAt(i);
+			if (item.archive == mSnapshot) {
+				positions[k] = mItems.positionAt(i);
+				ids[k] = item.id;
+				sources[k++] = item.archiveIndex;
+			}
+		}
+		SavedStateArchive archive;
+		try {
+			archive = SavedStateArchive.create(mSnapshot, positions, ids, sources,
+					new byte[referenced][]);
+		} catch (IOException e) {
+			// In-memory archives are copied without any I/O
+			throw new IllegalStateException(e);
+		}
+		for (int i = 0, k = 0; i < mItems.size(); ++i) {
+			Item item = mItems.valueAt(i);
+			if (item.archive == mSnapshot) {
+				item.archive = archive;
+				item.archiveIndex = k++;
+			}
+		}
+		mSnapshot = archive;
 	}
 
+	/**
+	 * The pager's activity is finishing, so the spilled states will never be restored.
+	 */
 	@Override
-	public final int getCount() {
-		return mCount + 1;
+	void onHostFinishing() {
+		if (mSnapshot != null && mSnapshot.getFile() != null) {
+			mSnapshot.getFile().delete();
+		}
+		if (mSpillFile != null) {
+			mSpillFile.delete();
+		}
+		setSpillFile(null);
 	}
 
-	int getRealCount() {
-		return mRealCount;
+	private void setSpillFile(File file) {
+		if (mSpillFile != null) {
+			sSpillFilesInUse.remove(mSpillFile);
+		}
+		mSpillFile = file;
+		if (file != null) {
+			sSpillFilesInUse.add(file);
+		}
 	}
 
-	void useRealCount() {
-		mCount = mRealCount;
+	private static void deleteStaleSpillFiles(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) return;
+		long staleTime = System.currentTimeMillis() - STALE_SPILL_AGE;
+		for (File file : files) {
+			if (file.getName().startsWith(SPILL_FILE_PREFIX) && file.lastModified() < staleTime &&
+					!sSpillFilesInUse.contains(file)) {
+				file.delete();
+			}
+		}
 	}
 
-	void notifyDataSetChangedInternal() {
-		mInternalObserver.notifyChanged();
+	/**
+	 * Create items that are backed by the given archive.
+	 */
+	private void restoreItems(SavedStateArchive archive) {
+		for (int i = 0; i < archive.size(); ++i) {
+			Item item = new Item();
+			item.id = archive.idAt(i);
+			item.archive = archive;
+			item.archiveIndex = i;
+			mItems.put(archive.positionAt(i), item);
+		}
+		mSnapshot = archive;
+		if (archive.getFile() != null) {
+			// Keep overwriting the same file
+			setSpillFile(archive.getFile());
+		}
 	}
 
-	void registerDataSetObserverInternal(DataSetObserver observer) {
-		mInternalObserver.registerObserver(observer);
+	/**
+	 * Get the item's state, reading it from the archive that backs the item if necessary.
+	 */
+	private Fragment.SavedState getState(Item item) {
+		if (item.state == null && item.archive != null) {
+			try {
+				item.state = item.archive.readState(item.archiveIndex, mLoader);
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to read a saved state", e);
+				item.archive = null;
+			}
+		}
+		return item.state;
 	}
 
-	void unregisterDataSetObserverInternal(DataSetObserver observer) {
-		mInternalObserver.unregisterObserver(observer);
+	private static class Item {
+		private long id = NO_ID;
+		private Fragment fragment;
+		private Fragment.SavedState state;
+		/**
+		 * Archive entry that holds the state. Cleared when the state changes, i.e. the item becomes
+		 * dirty and must be marshalled on the next save.
+		 */
+		private SavedStateArchive archive;
+		private int archiveIndex;
+
+		private boolean hasState() {
+			return state != null || (archive != null && archive.hasState(archiveIndex));
+		}
 	}
 
 }
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2015. Simas Abramovas
+ *
+ * This file is part of VersatileViewPager.
+ *
+ * VersatileViewPager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VersatileViewPager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VersatileViewPager. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.simas.versatileviewpager;
+
+import android.content.ComponentCallbacks2;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcelable;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Lightweight sibling of {@link VersatilePagerAdapter} whose pages are plain views instead of
+ * fragments, so there are no fragment transactions or lifecycles involved when switching pages.
+ * Destroyed views are pooled by their view type and rebound with {@link #bindView(View, int)}
+ * when another item of the same type is instantiated.<br/>
+ * Remember that the item at position 0 is always the empty item, see {@link
+ * #createEmptyView(ViewGroup)}.
+ */
+public abstract class VersatileViewAdapter extends VersatileAdapter {
+
+	/**
+	 * View type of the empty item at position 0.
+	 */
+	public static final int VIEW_TYPE_EMPTY = -1;
+	private static final String STATE_COUNT = "count";
+	/**
+	 * Maximum amount of views that are pooled for every view type.
+	 */
+	private static final int MAX_POOL_SIZE = 3;
+	/**
+	 * Destroyed views that can be rebound to other positions, grouped by their view type.
+	 */
+	private final SparseArray<ArrayList<View>> mPool = new SparseArray<>();
+	private final Map<View, Integer> mViewTypes = new IdentityHashMap<>();
+	/**
+	 * Creates the views off the main thread in the async creation mode.
+	 */
+	private static Executor sCreateExecutor;
+	private final String TAG = getClass().getName();
+	private Handler mMainHandler;
+	private boolean mAsyncCreation;
+	/**
+	 * Views that are shown by the frames of the async creation mode. Frames whose views are still
+	 * being created aren't present.
+	 */
+	private final Map<View, View> mFrameContents = new IdentityHashMap<>();
+
+	public VersatileViewAdapter() {}
+
+	/**
+	 * Create a view of the given type. It's bound to a position with {@link #bindView(View, int)}
+	 * before it's shown. The view must not be added to the container.<br/>
+	 * In the async creation mode, see {@link #setAsyncCreationEnabled(boolean)}, this is called on
+	 * a background thread, so it must only create the view and not touch anything else.
+	 */
+	public abstract View createView(ViewGroup container, int viewType);
+
+	/**
+	 * Bind a view that was created by {@link #createView(ViewGroup, int)}, either new or recycled,
+	 * to the item at the given position.
+	 */
+	public abstract void bindView(View view, int position);
+
+	/**
+	 * Return the view type of the item at the given position, other than {@link
+	 * #VIEW_TYPE_EMPTY}. Only views of the same type are recycled for each other. Returns 0 by
+	 * default, i.e. all the views are the same type. Never called for the empty item.
+	 */
+	public int getItemViewType(int position) {
+		return 0;
+	}
+
+	/**
+	 * In the async creation mode, items whose view type has no pooled views are instantiated as
+	 * empty frames, while {@link #createView(ViewGroup, int)} runs on a background thread. Once
+	 * the view is created, it's bound and put into the frame on the main thread. This keeps
+	 * inflating heavy layouts out of the frame in which the pager settles. Pages are then the
+	 * frames, not the created views. Views that fail to be created off the main thread, e.g.
+	 * because they need a {@link Looper}, are created on the main thread instead. Disabled by
+	 * default.
+	 */
+	public void setAsyncCreationEnabled(boolean enabled) {
+		mAsyncCreation = enabled;
+	}
+
+	public boolean isAsyncCreationEnabled() {
+		return mAsyncCreation;
+	}
+
+	/**
+	 * Create views of the given type on a background thread and put them into the pool ahead of
+	 * time, so that the items of that type can be instantiated without creating any views. At
+	 * most a few views are pooled for every type, the rest are dropped.
+	 */
+	public void prepareViews(ViewGroup container, int viewType, int count) {
+		for (int i = 0; i < count; ++i) {
+			createInBackground(container, null, viewType);
+		}
+	}
+
+	/**
+	 * Create the view of the empty item at position 0. The default one shows that there's nothing
+	 * here, same as {@link EmptyFragment}.
+	 */
+	public View createEmptyView(ViewGroup container) {
+		return LayoutInflater.from(container.getContext())
+				.inflate(R.layout.fragment_empty, container, false);
+	}
+
+	/**
+	 * Drop the pooled views on moderate or more severe trim levels.
+	 */
+	@Override
+	public void onTrimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+				level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			for (int i = 0; i < mPool.size(); ++i) {
+				for (View view : mPool.valueAt(i)) {
+					mViewTypes.remove(view);
+				}
+			}
+			mPool.clear();
+		}
+	}
+
+	@Override
+	public Object instantiateItem(ViewGroup container, int position) {
+		if (position > getRealCount()) return null;
+
+		int viewType = (position == 0) ? VIEW_TYPE_EMPTY : getItemViewType(position);
+		View view = obtainPooled(viewType);
+		if (view == null && mAsyncCreation && viewType != VIEW_TYPE_EMPTY) {
+			// The view is put in the frame when it's ready
+			FrameLayout frame = new FrameLayout(container.getContext());
+			container.addView(frame);
+			mPositions.put(frame, position);
+			createInBackground(container, frame, viewType);
+			return frame;
+		} else if (view == null) {
+			view = (viewType == VIEW_TYPE_EMPTY) ?
+					createEmptyView(container) : createView(container, viewType);
+			mViewTypes.put(view, viewType);
+		}
+		if (viewType != VIEW_TYPE_EMPTY) {
+			bindView(view, position);
+		}
+		View page = view;
+		if (mAsyncCreation && viewType != VIEW_TYPE_EMPTY) {
+			// Pages of the async mode are always frames, no matter whether their view was ready
+			FrameLayout frame = new FrameLayout(container.getContext());
+			frame.addView(view);
+			mFrameContents.put(frame, view);
+			page = frame;
+		}
+		container.addView(page);
+		mPositions.put(page, position);
+		if (viewType != VIEW_TYPE_EMPTY) {
+			requestBind(page);
+		}
+
+		return page;
+	}
+
+	@Override
+	public void destroyItem(ViewGroup container, int position, Object object) {
+		// Views of removed items are no longer tracked, but still have to leave the container
+		View view = (View) object;
+		pausePage(view);
+		container.removeView(view);
+		mPositions.remove(view);
+		View content = mFrameContents.remove(view);
+		if (content != null) {
+			((ViewGroup) view).removeView(content);
+			recycle(content);
+		} else {
+			// Frames with pending views recycle them once they're created
+			recycle(view);
+		}
+	}
+
+	@Override
+	public boolean isViewFromObject(View view, Object object) {
+		return view != null && view == object;
+	}
+
+	@Override
+	public Parcelable saveState() {
+		Bundle state = new Bundle();
+		state.putInt(STATE_COUNT, getCount() - 1);
+		return state;
+	}
+
+	@Override
+	public void restoreState(Parcelable state, ClassLoader loader) {
+		if (state != null) {
+			int count = ((Bundle) state).getInt(STATE_COUNT, 0);
+			if (count > 0) {
+				restoreCount(count);
+			}
+		}
+	}
+
+	@Override
+	void onPageRemoved(Object page) {
+		// Nothing to queue, the pager destroys the view once it sees the item is gone
+	}
+
+	@Override
+	View getPageView(Object page) {
+		return (View) page;
+	}
+
+	/**
+	 * Frames of the async creation mode are represented by the views they show, once these are
+	 * created.
+	 */
+	@Override
+	Object getPageTarget(Object page) {
+		View content = mFrameContents.get(page);
+		return (content == null) ? page : content;
+	}
+
+	/**
+	 * Create a view of the given type on a background thread.
+	 * @param frame    frame that shows the view or null to pool it
+	 */
+	private void createInBackground(final ViewGroup container, final FrameLayout frame,
+	                                final int viewType) {
+		if (sCreateExecutor == null) {
+			sCreateExecutor = Executors.newSingleThreadExecutor();
+		}
+		if (mMainHandler == null) {
+			mMainHandler = new Handler(Looper.getMainLooper());
+		}
+		sCreateExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				View view = null;
+				try {
+					view = createView(container, viewType);
+				} catch (RuntimeException e) {
+					Log.w(TAG, "Failed to create a view in the background, creating it on the " +
+							"main thread instead", e);
+				}
+				final View created = view;
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onViewCreated(container, frame, viewType, created);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Put a view that was created in the background into its frame, if the frame's item is still
+	 * alive. Otherwise the view is pooled.
+	 * @param view    created view or null if it has to be created here
+	 */
+	private void onViewCreated(ViewGroup container, FrameLayout frame, int viewType, View view) {
+		Integer position = (frame == null) ? null : mPositions.get(frame);
+		if (view == null && position == null) return;
+		if (view == null) {
+			view = createView(container, viewType);
+		}
+		mViewTypes.put(view, viewType);
+		if (position == null) {
+			recycle(view);
+			return;
+		}
+		bindView(view, position);
+		frame.addView(view);
+		mFrameContents.put(frame, view);
+		requestBind(frame);
+		bindIfIdle();
+	}
+
+	/**
+	 * Put the view into the pool of its view type, if there's room.
+	 */
+	private void recycle(View view) {
+		Integer viewType = mViewTypes.get(view);
+		if (viewType == null) return;
+		ArrayList<View> pool = mPool.get(viewType);
+		if (pool == null) {
+			pool = new ArrayList<>(MAX_POOL_SIZE);
+			mPool.put(viewType, pool);
+		}
+		if (pool.size() < MAX_POOL_SIZE) {
+			pool.add(view);
+		} else {
+			mViewTypes.remove(view);
+		}
+	}
+
+	/**
+	 * Take a view of the given type from the pool.
+	 * @return the view or null if the pool is empty
+	 */
+	private View obtainPooled(int viewType) {
+		ArrayList<View> pool = mPool.get(viewType);
+		return (pool == null || pool.isEmpty()) ? null : pool.remove(pool.size() - 1);
+	}
+
+}
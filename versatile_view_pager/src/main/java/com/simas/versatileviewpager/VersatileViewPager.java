@@ -18,25 +18,41 @@
  */
 package com.simas.versatileviewpager;
 
+import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.res.Configuration;
 import android.database.DataSetObserver;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Looper;
-import android.support.v4.app.Fragment;
+import android.os.MessageQueue;
 import android.support.v4.view.*;
+import android.support.v4.view.ViewCompat;
 import android.support.v4.view.PagerAdapter;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.MotionEvent;
+import android.view.VelocityTracker;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewTreeObserver;
+import android.view.animation.AlphaAnimation;
+import android.view.animation.Animation;
+import android.view.animation.AnimationUtils;
+import android.view.animation.Interpolator;
 import android.widget.ImageView;
 import android.widget.RelativeLayout;
+import android.widget.Scroller;
 
+import java.lang.reflect.Field;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 // ToDo when a remvoed item forces a change in positions, the currently selected item blinks
@@ -45,12 +61,12 @@ import java.util.concurrent.CopyOnWriteArraySet;
 /**
  * <h4>How it works:</h4>
  * When deleting it switches to its neighbour with {@link #setCurrentItem(int)}, however if both
- * of the neighbours are deleted based on {@link VersatilePagerAdapter#getRealCount()}, then it
+ * of the neighbours are deleted based on {@link VersatileAdapter#getRealCount()}, then it
  * will switch to the last position based the real count. <br/><br/>
  * To switch seamlessly after the current item is no longer in at the current position, the pager
  * switches to the neighbour (forward if there are any, otherwise backwards). After switching to
  * the neighbour an image depicting the current view will be overlain while the real position
- * switching takes place by invoking {@link VersatilePagerAdapter#notifyDataSetChanged()}. <br/>
+ * switching takes place by invoking {@link VersatileAdapter#notifyDataSetChanged()}. <br/>
  * <br/><br/>
  * <img src="listener_callbacks_during_transition.png"/><br/>
  * This dialog shows the callback modifications during the two switches that take place when
@@ -61,7 +77,7 @@ import java.util.concurrent.CopyOnWriteArraySet;
  * <ul>
  *     <li>The preview will be added as sibling and can block the view of widgets like DrawerLayout.
  *     To avoid that, you may need to wrap this pager in a separate container, e.g. a
- *     {@link RelativeLayout}</li>
+ *     {@link RelativeLayout}, or use {@link #setFrozenTransitionEnabled(boolean)}</li>
  *     <li>The item at position 0 is always the empty item</li>
  *     <li>The over-scroll disabled because of the left-most, i.e. the empty, item.</li>
  *     <li>Although you shouldn't be able to scroll to the empty item, it can still be selected
@@ -70,24 +86,156 @@ import java.util.concurrent.CopyOnWriteArraySet;
  */
 public class VersatileViewPager extends ViewPager {
 
+	/**
+	 * After a removal, slide to a neighbour and cover the switch to the final position. Default.
+	 */
+	public static final int TRANSITION_SLIDE = 0;
+	/**
+	 * After a removal, switch to the final position right away and fade the removed page out.
+	 */
+	public static final int TRANSITION_CROSSFADE = 1;
+	/**
+	 * After a removal, switch to the final position right away.
+	 */
+	public static final int TRANSITION_INSTANT = 2;
 	private final String TAG = getClass().getName();
 	private CopyOnWriteArraySet<OnPageChangeListener> mListeners = new CopyOnWriteArraySet<>();
 	private boolean mOnPageChangeListenersEnabled = true;
 	private float mStartDragX;
+	/**
+	 * Forwards memory trim levels to the adapter while attached to a window. Only used on API 14+.
+	 */
+	private ComponentCallbacks2 mTrimCallbacks;
+
+	/* Offscreen page limit */
+	private int mOffscreenPageLimit = 1, mMaxOffscreenPageLimit = 1;
+	/**
+	 * Pages added to the offscreen page limit because of the scroll velocity, until scrolling stops.
+	 */
+	private int mVelocityPages;
+	private VelocityTracker mVelocityTracker;
+
+	/* Prefetch */
+	/**
+	 * Pages that are prefetched on each side of the current one, on top of the offscreen page
+	 * limit.
+	 */
+	private int mPrefetchBudget, mPrefetchedPages;
+	/**
+	 * Direction of the last page selection, 1 forwards, -1 backwards or 0 before the first one.
+	 */
+	private int mScrollDirection;
+	/**
+	 * Page that was selected last. Seeded with the current item whenever the pager becomes idle.
+	 */
+	private int mLastSelected;
+	private int mScrollState = SCROLL_STATE_IDLE;
+	private boolean mPrefetchScheduled;
+	/**
+	 * ViewPager's own offscreen page limit, which is lowered without a populate pass, see {@link
+	 * #consumePrefetchedPages(int)}.
+	 */
+	private static Field sOffscreenPageLimit;
+	private static boolean sOffscreenPageLimitResolved;
+	/**
+	 * Raises the offscreen page limit by a single page every time the main thread becomes idle,
+	 * until the budget is used up. That's a page on each side of the current one.
+	 */
+	private final MessageQueue.IdleHandler mPrefetcher = new MessageQueue.IdleHandler() {
+		@Override
+		public boolean queueIdle() {
+			if (mScrollState != SCROLL_STATE_IDLE || !isEnabled() || getVersatileAdapter() == null ||
+					mPrefetchedPages >= mPrefetchBudget) {
+				mPrefetchScheduled = false;
+				return false;
+			}
+			++mPrefetchedPages;
+			applyOffscreenPageLimit();
+			mPrefetchScheduled = mPrefetchedPages < mPrefetchBudget;
+			return mPrefetchScheduled;
+		}
+	};
+	/**
+	 * Tracks the scroll state and direction. Added via the super method, so it's not affected by
+	 * {@link #setListenersEnabled(boolean)}.
+	 */
+	private final OnPageChangeListener mScrollTracker = new SimpleOnPageChangeListener() {
+		@Override
+		public void onPageSelected(int position) {
+			if (position == mLastSelected) return;
+			int direction = (position > mLastSelected) ? 1 : -1;
+			mLastSelected = position;
+			// The first selection only sets the direction
+			if (mScrollDirection != 0 && direction != mScrollDirection) {
+				// Pages prefetched in the other direction are no longer needed
+				cancelPrefetch();
+			}
+			mScrollDirection = direction;
+		}
+
+		@Override
+		public void onPageScrollStateChanged(int state) {
+			mScrollState = state;
+			if (getVersatileAdapter() != null) {
+				getVersatileAdapter().setScrolling(state != SCROLL_STATE_IDLE);
+			}
+			if (state == SCROLL_STATE_IDLE) {
+				// Release the distant pages that were retained because of the velocity
+				if (mVelocityPages > 0) {
+					mVelocityPages = 0;
+					applyOffscreenPageLimit();
+				}
+				mLastSelected = getCurrentItem();
+				schedulePrefetch();
+			} else if (mPrefetchScheduled) {
+				// Don't populate while scrolling
+				Looper.myQueue().removeIdleHandler(mPrefetcher);
+				mPrefetchScheduled = false;
+			}
+		}
+	};
 
 	/* Overlay */
 	private ImageView mOverlayImage;
+	private Utils.ReusableScreenshot mScreenshot =
+			new Utils.ReusableScreenshot(Bitmap.Config.ARGB_8888, 1);
+	private boolean mFrozenTransition;
+	private int mRemovalTransition = TRANSITION_SLIDE;
+	/**
+	 * Duration of the slides that follow removals or -1 for the default duration.
+	 */
+	private int mSlideDuration = -1;
+	private SlideScroller mSlideScroller;
+	private int mFadeDuration;
+	/**
+	 * Time at which {@link #mFrozenFrame} started fading out or -1 if it isn't fading.
+	 */
+	private long mFadeStart = -1;
+	private boolean mOverlayFading;
+	/**
+	 * Screenshot that {@link #dispatchDraw(Canvas)} shows instead of the pages, while a frozen
+	 * transition is running.
+	 */
+	private Bitmap mFrozenFrame;
+	private final Rect mFrozenBounds = new Rect();
+	private final Paint mFrozenPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
 	private ViewGroup mPagerParent, mPreviewOverlay;
 	private int mRemovedPosition;
-	private final Utils.PausableHandler mPausableHandler = new Utils.PausableHandler();
+	/**
+	 * Runs the updates that follow adapter changes, one at a time. Paused while a removal
+	 * transition is running.
+	 */
+	private final Utils.SerialExecutor mTransitionExecutor = new Utils.SerialExecutor();
+	/**
+	 * Set once the pager settles during a removal, so the switches that follow aren't reported.
+	 */
+	private boolean mIgnoreSwitches;
 	private ViewPager.SimpleOnPageChangeListener mTemporarySwitchListener = new ViewPager
 			.SimpleOnPageChangeListener() {
-		private boolean mIgnoreFurtherCalls;
-
 		@Override
 		public void onPageSelected(int position) {
 			super.onPageSelected(position);
-			if (!mIgnoreFurtherCalls && mRemovedPosition != -1) {
+			if (!mIgnoreSwitches && mRemovedPosition != -1) {
 				for (OnPageChangeListener listener : mListeners) {
 					listener.onPageSelected(mRemovedPosition);
 				}
@@ -97,38 +245,70 @@ public class VersatileViewPager extends ViewPager {
 		@Override
 		public void onPageScrollStateChanged(int state) {
 			super.onPageScrollStateChanged(state);
-			if (state == ViewPager.SCROLL_STATE_IDLE && !mIgnoreFurtherCalls) {
-				mIgnoreFurtherCalls = true;
-				// Overlay and image while working (prevent flickering)
-				mOverlayImage.setImageBitmap(Utils.screenshot(VersatileViewPager.this));
-				mPagerParent.addView(mPreviewOverlay);
-
-				// Change the count and notify (for real now)
-				getAdapter().useRealCount();
-				getAdapter().notifyDataSetChanged();
-
-				// Switch to the unused page, it's populated by notifyDataSetChanged
-				if (mRemovedPosition != -1) {
-					for (OnPageChangeListener listener : mListeners) {
-						listener.onPageScrollStateChanged(ViewPager.SCROLL_STATE_IDLE);
+			if (state == ViewPager.SCROLL_STATE_IDLE && !mIgnoreSwitches) {
+				finishRemoval(true);
+			}
+		}
+	};
+	/**
+	 * Whether {@link #mUpdate} is queued. Notifications that arrive in the meantime are covered by
+	 * it, as it applies the adapter's latest count.
+	 */
+	private boolean mUpdatePending;
+	private final Runnable mUpdate = new Runnable() {
+		@Override
+		public void run() {
+			mUpdatePending = false;
+			Object primaryItem = getVersatileAdapter().getPrimaryItem();
+			if (primaryItem != null) {
+				int primaryPos = getVersatileAdapter().getItemPosition(primaryItem);
+				if (primaryPos == PagerAdapter.POSITION_NONE) {
+					// Prevent other switches until finished
+					mTransitionExecutor.setPaused(true);
+
+					// Disable scrolling
+					setEnabled(false);
+
+					// Deal with the listener via the super method, to avoid saving/removing it
+					VersatileViewPager.super
+							.addOnPageChangeListener(mTemporarySwitchListener);
+					// Default listeners are told about the final position instead of the switches
+					setListenersEnabled(false);
+
+					// Pending changes are applied at once, so a single switch is enough no matter
+					// how many items were removed
+					int neighbour = findSurvivingNeighbour(primaryItem);
+					if (neighbour != -1 && mRemovalTransition == TRANSITION_SLIDE) {
+						if (mSlideScroller != null) {
+							mSlideScroller.mDuration = mSlideDuration;
+						}
+						setCurrentItem(neighbour);
+						if (mSlideScroller != null) {
+							mSlideScroller.mDuration = -1;
+						}
+					} else {
+						// No need to slide or nothing survived nearby to slide to
+						if (neighbour == -1) {
+							mRemovedPosition = Math.min(getCurrentItem(),
+									getVersatileAdapter().getRealCount());
+						}
+						for (OnPageChangeListener listener : mListeners) {
+							listener.onPageSelected(mRemovedPosition);
+						}
+						finishRemoval(false);
 					}
-					setCurrentItem(mRemovedPosition, false);
+					return;
 				}
-
-				// When switches have settled, remove the preview and re-enable scrolling
-				mPagerParent.post(new Runnable() {
+			}
+			final int oldCount = getVersatileAdapter().getCount();
+			getVersatileAdapter().useRealCount();
+			getVersatileAdapter().notifyDataSetChanged();
+			// If a new item has been added, switch to it
+			if (oldCount == 1 && getVersatileAdapter().getCount() >= 2) {
+				post(new Runnable() {
 					@Override
 					public void run() {
-						// Deal with the listener via the super method, to avoid saving/removing it
-						VersatileViewPager.super
-								.removeOnPageChangeListener(mTemporarySwitchListener);
-						// Re-enable the default listeners before invoking a method that must be caught
-						setListenersEnabled(true);
-						mIgnoreFurtherCalls = false;
-						mPagerParent.removeView(mPreviewOverlay);
-						setEnabled(true);
-						// Resume other messages
-						mPausableHandler.setPaused(false);
+						setCurrentItem(1);
 					}
 				});
 			}
@@ -141,59 +321,109 @@ public class VersatileViewPager extends ViewPager {
 			if (Thread.currentThread() != Looper.getMainLooper().getThread()) {
 				throw new IllegalStateException("Must be notified on the main thread!");
 			}
-			mPausableHandler.post(new Runnable() {
-				@Override
-				public void run() {
-					Object primaryItem = getAdapter().getPrimaryItem();
-					if (primaryItem != null) {
-						int primaryPos = getAdapter().getItemPosition(primaryItem);
-						if (primaryPos == PagerAdapter.POSITION_NONE) {
-							// Prevent other switches until finished
-							mPausableHandler.setPaused(true);
-
-							// Disable scrolling
-							setEnabled(false);
-
-							mRemovedPosition = getCurrentItem();
-							// Deal with the listener via the super method, to avoid saving/removing it
-							VersatileViewPager.super
-									.addOnPageChangeListener(mTemporarySwitchListener);
-
-							if (getCurrentItem() == getAdapter().getCount() - 1 &&
-									getCurrentItem() - 1 <= getAdapter().getRealCount() + 1) {
-								// - 1 for previous; + 1 for empty item
-								// switch to previous item
-								setCurrentItem(getCurrentItem() - 1);
-							} else if (getCurrentItem() + 1 <= getAdapter().getRealCount() + 1) {
-								// + 1 for next; + 1 for empty item
-								// Switch to next item // Default listeners should be disabled
-								setListenersEnabled(false);
-								setCurrentItem(getCurrentItem() + 1);
-							} else {
-								// Otherwise switch to the last available item
-								setCurrentItem(getAdapter().getRealCount());
-								mRemovedPosition = -1;
-							}
-							return;
-						}
-					}
-					final int oldCount = getAdapter().getCount();
-					getAdapter().useRealCount();
-					getAdapter().notifyDataSetChanged();
-					// If a new item has been added, switch to it
-					if (oldCount == 1 && getAdapter().getCount() >= 2) {
-						post(new Runnable() {
-							@Override
-							public void run() {
-								setCurrentItem(1);
-							}
-						});
-					}
-				}
-			});
+			if (!mUpdatePending) {
+				mUpdatePending = true;
+				mTransitionExecutor.post(mUpdate);
+			}
 		}
 	};
 
+	/**
+	 * Find the closest page next to the current one whose item survived the pending changes,
+	 * looking forwards first. {@link #mRemovedPosition} is set to the item's position after the
+	 * changes are applied.
+	 * @return the position at which the page is currently shown or -1 if there's no such page
+	 */
+	private int findSurvivingNeighbour(Object primaryItem) {
+		View primaryView = getVersatileAdapter().getPageView(primaryItem);
+		if (primaryView == null) return -1;
+		float pageWidth = primaryView.getWidth() + getPageMargin();
+		if (pageWidth <= 0) return -1;
+
+		int current = getCurrentItem();
+		int forward = Integer.MAX_VALUE, backward = -1, forwardPosition = -1, backwardPosition = -1;
+		for (int i = 0; i < getChildCount(); ++i) {
+			View child = getChildAt(i);
+			int position = getVersatileAdapter().getLivePosition(child);
+			// Skip decor views, removed items and the empty item
+			if (position < 1) continue;
+			int shown = current + Math.round((child.getLeft() - primaryView.getLeft()) / pageWidth);
+			if (shown > current && shown < forward) {
+				forward = shown;
+				forwardPosition = position;
+			} else if (shown < current && shown > backward) {
+				backward = shown;
+				backwardPosition = position;
+			}
+		}
+		if (forwardPosition != -1) {
+			mRemovedPosition = forwardPosition;
+			return forward;
+		} else if (backwardPosition != -1) {
+			mRemovedPosition = backwardPosition;
+			return backward;
+		} else {
+			return -1;
+		}
+	}
+
+	/**
+	 * Apply the pending changes to the pager under an overlay of its current looks and settle on
+	 * {@link #mRemovedPosition}.
+	 * @param switched    whether the pager switched to a neighbour first
+	 */
+	private void finishRemoval(boolean switched) {
+		mIgnoreSwitches = true;
+		// Overlay and image while working (prevent flickering)
+		if (mFrozenTransition) {
+			// A frame that is still fading out is the bitmap being taken, so the pages must be
+			// drawn instead
+			mFrozenFrame = null;
+			mFadeStart = -1;
+			mFrozenFrame = mScreenshot.take(this);
+			invalidate();
+		} else if (mPreviewOverlay.getParent() != null) {
+			// Still fading out after the previous removal
+			mOverlayFading = false;
+			mPreviewOverlay.clearAnimation();
+			mOverlayImage.setImageBitmap(mScreenshot.take(VersatileViewPager.this));
+		} else {
+			mOverlayImage.setImageBitmap(mScreenshot.take(VersatileViewPager.this));
+			mPagerParent.addView(mPreviewOverlay);
+		}
+
+		// Change the count and notify (for real now)
+		getVersatileAdapter().useRealCount();
+		getVersatileAdapter().notifyDataSetChanged();
+
+		// Switch to the unused page, it's populated by notifyDataSetChanged
+		if (mRemovedPosition != -1) {
+			if (switched) {
+				for (OnPageChangeListener listener : mListeners) {
+					listener.onPageScrollStateChanged(ViewPager.SCROLL_STATE_IDLE);
+				}
+			}
+			setCurrentItem(mRemovedPosition, false);
+		}
+
+		// When switches have settled, remove the preview and re-enable scrolling
+		post(new Runnable() {
+			@Override
+			public void run() {
+				// Deal with the listener via the super method, to avoid saving/removing it
+				VersatileViewPager.super
+						.removeOnPageChangeListener(mTemporarySwitchListener);
+				// Re-enable the default listeners before invoking a method that must be caught
+				setListenersEnabled(true);
+				mIgnoreSwitches = false;
+				uncover();
+				setEnabled(true);
+				// Resume other messages
+				mTransitionExecutor.setPaused(false);
+			}
+		});
+	}
+
 	public VersatileViewPager(Context context) {
 		super(context);
 		init();
@@ -205,6 +435,7 @@ public class VersatileViewPager extends ViewPager {
 	}
 
 	private void init() {
+		super.addOnPageChangeListener(mScrollTracker);
 		if (Build.VERSION.SDK_INT >= 9) {
 			// Disable over-scrolling
 			setOverScrollMode(View.OVER_SCROLL_NEVER);
@@ -213,6 +444,8 @@ public class VersatileViewPager extends ViewPager {
 		mOverlayImage = new ImageView(getContext());
 		mOverlayImage.setLayoutParams(new ViewGroup
 				.LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+		// Downscaled screenshots are stretched back to the pager's size
+		mOverlayImage.setScaleType(ImageView.ScaleType.FIT_XY);
 		mPreviewOverlay = new RelativeLayout(getContext());
 
 		// Set preview background
@@ -236,6 +469,7 @@ public class VersatileViewPager extends ViewPager {
 		mPreviewOverlay.setLayoutParams(new ViewGroup
 				.LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
 		mPreviewOverlay.addView(mOverlayImage);
+		mFadeDuration = getResources().getInteger(android.R.integer.config_shortAnimTime);
 
 		// Delay until parent is known
 		getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
@@ -249,38 +483,117 @@ public class VersatileViewPager extends ViewPager {
 		});
 	}
 
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		schedulePrefetch();
+		if (Build.VERSION.SDK_INT >= 14) {
+			if (mTrimCallbacks == null) {
+				mTrimCallbacks = new ComponentCallbacks2() {
+					@Override
+					public void onTrimMemory(int level) {
+						if (getVersatileAdapter() != null) {
+							getVersatileAdapter().onTrimMemory(level);
+						}
+					}
+
+					@Override
+					public void onConfigurationChanged(Configuration newConfig) {}
+
+					@Override
+					public void onLowMemory() {
+						onTrimMemory(TRIM_MEMORY_COMPLETE);
+					}
+				};
+			}
+			getContext().getApplicationContext().registerComponentCallbacks(mTrimCallbacks);
+		}
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		if (getVersatileAdapter() != null && isActivityFinishing()) {
+			getVersatileAdapter().onHostFinishing();
+		}
+		mScreenshot.release();
+		if (mPrefetchScheduled) {
+			Looper.myQueue().removeIdleHandler(mPrefetcher);
+			mPrefetchScheduled = false;
+		}
+		if (mTrimCallbacks != null) {
+			getContext().getApplicationContext().unregisterComponentCallbacks(mTrimCallbacks);
+		}
+	}
+
 	@Override
 	public void setAdapter(final PagerAdapter adapter) {
-		if (!(adapter instanceof VersatilePagerAdapter)) {
+		if (!(adapter instanceof VersatileAdapter)) {
 			throw new IllegalArgumentException("VersatileViewPager can only use a " +
-					"VersatilePagerAdapter.");
+					"VersatilePagerAdapter or a VersatileViewAdapter.");
 		}
 		// Remove observer from the previous adapter
-		if (getAdapter() != null) {
-			getAdapter().unregisterDataSetObserverInternal(mObserver);
+		if (getVersatileAdapter() != null) {
+			getVersatileAdapter().unregisterDataSetObserverInternal(mObserver);
 		}
+		// An update that's still queued belongs to the previous adapter
+		if (mUpdatePending) {
+			mTransitionExecutor.remove(mUpdate);
+			mUpdatePending = false;
+		}
+		((VersatileAdapter) adapter).setScrolling(mScrollState != SCROLL_STATE_IDLE);
 		super.setAdapter(adapter);
 		// Add observer
-		getAdapter().registerDataSetObserverInternal(mObserver);
+		getVersatileAdapter().registerDataSetObserverInternal(mObserver);
 	}
 
+	/**
+	 * Returns a {@link VersatilePagerAdapter}, as it always did. Pagers that use a {@link
+	 * VersatileViewAdapter} should keep their own reference to it instead.
+	 * @throws ClassCastException if the adapter is a {@link VersatileViewAdapter}
+	 */
 	@Override
 	public VersatilePagerAdapter getAdapter() {
 		return (VersatilePagerAdapter) super.getAdapter();
 	}
 
+	/**
+	 * @return the adapter, regardless of its kind
+	 */
+	VersatileAdapter getVersatileAdapter() {
+		return (VersatileAdapter) super.getAdapter();
+	}
+
+	@Override
+	public void setCurrentItem(int item) {
+		consumePrefetchedPages(Math.abs(item - getCurrentItem()));
+		super.setCurrentItem(item);
+	}
+
+	@Override
+	public void setCurrentItem(int item, boolean smoothScroll) {
+		consumePrefetchedPages(Math.abs(item - getCurrentItem()));
+		super.setCurrentItem(item, smoothScroll);
+	}
+
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
-		if (!isEnabled() || getAdapter() == null) {
+		if (!isEnabled() || getVersatileAdapter() == null) {
 			return true;
-		} else if (getCurrentItem() <= 1 && getAdapter().getCount() > 1) {
+		}
+		trackVelocity(event);
+		if (event.getAction() == MotionEvent.ACTION_UP && mScrollState == SCROLL_STATE_DRAGGING) {
+			// Releasing a drag settles on the next page, usually
+			consumePrefetchedPages(1);
+		}
+		if (getCurrentItem() <= 1 && getVersatileAdapter().getCount() > 1) {
 			switch (event.getAction()) {
 				case MotionEvent.ACTION_DOWN:
 					mStartDragX = event.getX();
 					break;
 				case MotionEvent.ACTION_MOVE:
 					// ViewPager un-scrollable when there's only a single item (empty item excluded)
-					if (event.getX() > mStartDragX || getAdapter().getCount() <= 2) {
+					if (event.getX() > mStartDragX || getVersatileAdapter().getCount() <= 2) {
 						return true;
 					}
 					break;
@@ -291,16 +604,18 @@ public class VersatileViewPager extends ViewPager {
 					 * which means the empty item becomes exposed. In such cases, manually scroll to
 					 * the end of the page.
 					 */
-					Fragment fragment = (Fragment) getAdapter().getPrimaryItem();
-					if (fragment != null && fragment.getView() != null) {
-						int viewLeft = fragment.getView().getLeft();
+					Object primaryItem = getVersatileAdapter().getPrimaryItem();
+					View primaryView = (primaryItem == null) ?
+							null : getVersatileAdapter().getPageView(primaryItem);
+					if (primaryView != null) {
+						int viewLeft = primaryView.getLeft();
 						if (getScrollX() < viewLeft) {
 							Log.w(TAG, String.format("Bad ScrollX: %d ChildLeft: %d",
 									getScrollX(), viewLeft));
 							scrollTo(viewLeft, getScrollY());
 						}
 					} else {
-						// In case the fragment or its view are not ready when scrolling, consume
+						// In case the page or its view are not ready when scrolling, consume
 						return true;
 					}
 					break;
@@ -311,9 +626,13 @@ public class VersatileViewPager extends ViewPager {
 
 	@Override
 	public boolean onInterceptTouchEvent(MotionEvent event) {
+		if (event.getAction() == MotionEvent.ACTION_DOWN && mVelocityTracker != null) {
+			// Movements of a previous gesture that didn't end here
+			mVelocityTracker.clear();
+		}
 		if (!isEnabled()) {
 			return true;
-		} else if (getCurrentItem() <= 1 && getAdapter() != null && getAdapter().getCount() > 1) {
+		} else if (getCurrentItem() <= 1 && getVersatileAdapter() != null && getVersatileAdapter().getCount() > 1) {
 			switch (event.getAction()) {
 				case MotionEvent.ACTION_DOWN:
 					mStartDragX = event.getX();
@@ -344,6 +663,302 @@ public class VersatileViewPager extends ViewPager {
 	public void clearOnPageChangeListeners() {
 		super.clearOnPageChangeListeners();
 		mListeners.clear();
+		super.addOnPageChangeListener(mScrollTracker);
+	}
+
+	/**
+	 * Set the quality of the screenshot that covers the pager while it's switching pages after a
+	 * removal. The screenshot's bitmap is reused for every removal, as long as the pager keeps its
+	 * size. A cheaper config, e.g. {@link Bitmap.Config#RGB_565}, or a scale below 1 reduce the
+	 * memory it takes. Defaults to {@link Bitmap.Config#ARGB_8888} at the full scale.
+	 * @param scale    size of the screenshot relative to the pager, in the range (0, 1]
+	 */
+	public void setTransitionScreenshotQuality(Bitmap.Config config, float scale) {
+		mScreenshot = new Utils.ReusableScreenshot(config, scale);
+	}
+
+	/**
+	 * In the frozen transition mode, the pager covers the page switches that follow a removal by
+	 * drawing a screenshot of itself, instead of its pages, until the switches settle. Unlike the
+	 * default overlay, which is added to the pager's parent, this doesn't change the view
+	 * hierarchy, so the parent isn't laid out again and the pager doesn't need a container of its
+	 * own. Disabled by default.
+	 */
+	public void setFrozenTransitionEnabled(boolean enabled) {
+		mFrozenTransition = enabled;
+	}
+
+	public boolean isFrozenTransitionEnabled() {
+		return mFrozenTransition;
+	}
+
+	/**
+	 * Set how the pager moves on when the primary item is removed. One of {@link
+	 * #TRANSITION_SLIDE}, {@link #TRANSITION_CROSSFADE} or {@link #TRANSITION_INSTANT}. Sliding
+	 * takes the longest before the pager accepts input again, see {@link
+	 * #setRemovalSlideDuration(int)}.
+	 */
+	public void setRemovalTransition(int transition) {
+		if (transition != TRANSITION_SLIDE && transition != TRANSITION_CROSSFADE &&
+				transition != TRANSITION_INSTANT) {
+			throw new IllegalArgumentException("Unknown transition " + transition + "!");
+		}
+		mRemovalTransition = transition;
+	}
+
+	public int getRemovalTransition() {
+		return mRemovalTransition;
+	}
+
+	/**
+	 * Set the duration of the slides that follow removals, see {@link #TRANSITION_SLIDE}. Other
+	 * scrolls keep their usual duration. The pager's scroller is replaced via reflection for this,
+	 * so if that fails, the default duration is used. -1 restores the default duration.
+	 */
+	public void setRemovalSlideDuration(int millis) {
+		if (millis < -1) throw new IllegalArgumentException("Duration cannot be less than -1!");
+		mSlideDuration = millis;
+		if (millis != -1 && mSlideScroller == null) {
+			try {
+				Field interpolator = ViewPager.class.getDeclaredField("sInterpolator");
+				interpolator.setAccessible(true);
+				Field scroller = ViewPager.class.getDeclaredField("mScroller");
+				scroller.setAccessible(true);
+				SlideScroller slideScroller = new SlideScroller(getContext(),
+						(Interpolator) interpolator.get(null));
+				scroller.set(this, slideScroller);
+				mSlideScroller = slideScroller;
+			} catch (NoSuchFieldException | IllegalAccessException e) {
+				Log.w(TAG, "Failed to replace the scroller, using the default duration", e);
+			}
+		}
+	}
+
+	public int getRemovalSlideDuration() {
+		return mSlideDuration;
+	}
+
+	@Override
+	protected void dispatchDraw(Canvas canvas) {
+		if (mFrozenFrame == null) {
+			super.dispatchDraw(canvas);
+			return;
+		}
+		int alpha = 255;
+		if (mFadeStart != -1) {
+			long elapsed = AnimationUtils.currentAnimationTimeMillis() - mFadeStart;
+			if (elapsed >= mFadeDuration) {
+				mFrozenFrame = null;
+				mFadeStart = -1;
+				super.dispatchDraw(canvas);
+				return;
+			}
+			// Pages are shown through the fading frame
+			alpha = (int) (255 * (1 - (float) elapsed / mFadeDuration));
+			super.dispatchDraw(canvas);
+			ViewCompat.postInvalidateOnAnimation(this);
+		}
+		// The canvas is scrolled along with the pages, the frame must cover the visible part
+		mFrozenBounds.set(getScrollX(), getScrollY(),
+				getScrollX() + getWidth(), getScrollY() + getHeight());
+		mFrozenPaint.setAlpha(alpha);
+		canvas.drawBitmap(mFrozenFrame, null, mFrozenBounds, mFrozenPaint);
+	}
+
+	/**
+	 * Remove whatever covers the pager during a removal, fading it out if crossfading.
+	 */
+	private void uncover() {
+		boolean fade = mRemovalTransition == TRANSITION_CROSSFADE;
+		if (mFrozenFrame != null) {
+			if (fade) {
+				mFadeStart = AnimationUtils.currentAnimationTimeMillis();
+			} else {
+				mFrozenFrame = null;
+			}
+			invalidate();
+		} else if (fade) {
+			mOverlayFading = true;
+			Animation fadeOut = new AlphaAnimation(1, 0);
+			fadeOut.setDuration(mFadeDuration);
+			fadeOut.setAnimationListener(new Animation.AnimationListener() {
+				@Override
+				public void onAnimationStart(Animation animation) {}
+
+				@Override
+				public void onAnimationEnd(Animation animation) {
+					// Views can't be removed while their animation is ending
+					post(new Runnable() {
+						@Override
+						public void run() {
+							if (mOverlayFading) {
+								mOverlayFading = false;
+								removeOverlay();
+							}
+						}
+					});
+				}
+
+				@Override
+				public void onAnimationRepeat(Animation animation) {}
+			});
+			mPreviewOverlay.startAnimation(fadeOut);
+		} else {
+			removeOverlay();
+		}
+	}
+
+	private void removeOverlay() {
+		mPagerParent.removeView(mPreviewOverlay);
+		mOverlayImage.setImageDrawable(null);
+	}
+
+	/**
+	 * Set the amount of pages that are retained on each side of the current one. Pages prefetched
+	 * with {@link #setPrefetchBudget(int)} come on top of this limit.
+	 */
+	@Override
+	public void setOffscreenPageLimit(int limit) {
+		mOffscreenPageLimit = Math.max(1, limit);
+		mMaxOffscreenPageLimit = Math.max(mMaxOffscreenPageLimit, mOffscreenPageLimit);
+		applyOffscreenPageLimit();
+	}
+
+	/**
+	 * Let the offscreen page limit grow with the velocity of drags and flings, up to the given
+	 * maximum, so that fast scans don't run into pages that haven't been created yet. The limit
+	 * grows by a page for every page width per second and falls back to {@link
+	 * #getOffscreenPageLimit()} once scrolling stops, which releases the distant pages. A maximum
+	 * that isn't greater than the offscreen page limit disables the adaptation, which is the
+	 * default.
+	 */
+	public void setMaxOffscreenPageLimit(int max) {
+		mMaxOffscreenPageLimit = Math.max(mOffscreenPageLimit, max);
+		if (mVelocityPages > mMaxOffscreenPageLimit - mOffscreenPageLimit) {
+			mVelocityPages = mMaxOffscreenPageLimit - mOffscreenPageLimit;
+			applyOffscreenPageLimit();
+		}
+	}
+
+	public int getMaxOffscreenPageLimit() {
+		return mMaxOffscreenPageLimit;
+	}
+
+	@Override
+	public int getOffscreenPageLimit() {
+		return mOffscreenPageLimit;
+	}
+
+	/**
+	 * Use the time in which the main thread is idle to create up to {@code pages} additional pages
+	 * on each side of the current one, beyond the offscreen page limit. The pager retains pages on
+	 * both sides alike, so every idle pass adds a page on each side, i.e. a budget of N creates up
+	 * to 2N pages. Prefetching only happens while the pager is idle.<br/>
+	 * Every page the user moves on uses up a prefetched page. It's taken out of the limit before
+	 * the pager populates the new page, so settling only needs pages that exist already and the
+	 * next idle pass refills the edge ahead. When the scroll direction reverses, the pages that
+	 * were prefetched in the other direction are dropped and prefetching starts over. Disabled with
+	 * 0, which is the default.
+	 */
+	public void setPrefetchBudget(int pages) {
+		if (pages < 0) throw new IllegalArgumentException("Budget cannot be less than 0!");
+		mPrefetchBudget = pages;
+		mLastSelected = getCurrentItem();
+		if (mPrefetchedPages > pages) {
+			mPrefetchedPages = pages;
+			applyOffscreenPageLimit();
+		}
+		schedulePrefetch();
+	}
+
+	public int getPrefetchBudget() {
+		return mPrefetchBudget;
+	}
+
+	private void schedulePrefetch() {
+		if (!mPrefetchScheduled && mPrefetchedPages < mPrefetchBudget &&
+				mScrollState == SCROLL_STATE_IDLE) {
+			mPrefetchScheduled = true;
+			Looper.myQueue().addIdleHandler(mPrefetcher);
+		}
+	}
+
+	/**
+	 * Drop the prefetched pages and start prefetching over.
+	 */
+	private void cancelPrefetch() {
+		if (mPrefetchedPages > 0) {
+			mPrefetchedPages = 0;
+			applyOffscreenPageLimit();
+		}
+		schedulePrefetch();
+	}
+
+	/**
+	 * The pager is about to move by the given amount of pages, which uses up as many prefetched
+	 * ones. The limit is lowered without a populate pass, so that the pass which settles on the new
+	 * page doesn't create a page at the edge ahead. Only the pages behind are released. If the
+	 * limit can't be accessed, the prefetched pages are simply kept.
+	 */
+	private void consumePrefetchedPages(int pages) {
+		int consumed = Math.min(pages, mPrefetchedPages);
+		if (consumed <= 0) return;
+		if (!sOffscreenPageLimitResolved) {
+			sOffscreenPageLimitResolved = true;
+			try {
+				sOffscreenPageLimit = ViewPager.class.getDeclaredField("mOffscreenPageLimit");
+				sOffscreenPageLimit.setAccessible(true);
+			} catch (NoSuchFieldException e) {
+				Log.w(TAG, "Failed to access the offscreen page limit, prefetched pages are kept", e);
+			}
+		}
+		if (sOffscreenPageLimit == null) return;
+		try {
+			sOffscreenPageLimit.setInt(this,
+					mOffscreenPageLimit + mVelocityPages + mPrefetchedPages - consumed);
+			mPrefetchedPages -= consumed;
+		} catch (IllegalAccessException e) {
+			Log.w(TAG, "Failed to lower the offscreen page limit", e);
+		}
+	}
+
+	private void applyOffscreenPageLimit() {
+		super.setOffscreenPageLimit(mOffscreenPageLimit + mVelocityPages + mPrefetchedPages);
+	}
+
+	/**
+	 * Raise the offscreen page limit according to the current scroll velocity. The limit is only
+	 * raised while scrolling, so the pages aren't repeatedly created and destroyed.
+	 */
+	private void trackVelocity(MotionEvent event) {
+		if (mMaxOffscreenPageLimit <= mOffscreenPageLimit) return;
+		if (mVelocityTracker == null) {
+			mVelocityTracker = VelocityTracker.obtain();
+		}
+		mVelocityTracker.addMovement(event);
+		switch (event.getAction()) {
+			case MotionEvent.ACTION_MOVE:
+			case MotionEvent.ACTION_UP:
+				int width = getWidth();
+				if (width > 0) {
+					mVelocityTracker.computeCurrentVelocity(1000);
+					int pages = Math.min((int) (Math.abs(mVelocityTracker.getXVelocity()) / width),
+							mMaxOffscreenPageLimit - mOffscreenPageLimit);
+					if (pages > mVelocityPages) {
+						mVelocityPages = pages;
+						applyOffscreenPageLimit();
+					}
+				}
+				if (event.getAction() == MotionEvent.ACTION_UP) {
+					mVelocityTracker.recycle();
+					mVelocityTracker = null;
+				}
+				break;
+			case MotionEvent.ACTION_CANCEL:
+				mVelocityTracker.recycle();
+				mVelocityTracker = null;
+				break;
+		}
 	}
 
 	private void setListenersEnabled(boolean enabled) {
@@ -363,8 +978,40 @@ public class VersatileViewPager extends ViewPager {
 		}
 	}
 
+	private boolean isActivityFinishing() {
+		Context context = getContext();
+		while (context instanceof ContextWrapper) {
+			if (context instanceof Activity) {
+				return ((Activity) context).isFinishing();
+			}
+			context = ((ContextWrapper) context).getBaseContext();
+		}
+		return false;
+	}
+
 	private boolean isListenersEnabled() {
 		return mOnPageChangeListenersEnabled;
 	}
 
+	/**
+	 * Scroller whose scrolls take a fixed duration, while one is set.
+	 */
+	private static class SlideScroller extends Scroller {
+
+		/**
+		 * Duration of the scrolls that are started or -1 to use the requested durations.
+		 */
+		private int mDuration = -1;
+
+		SlideScroller(Context context, Interpolator interpolator) {
+			super(context, interpolator);
+		}
+
+		@Override
+		public void startScroll(int startX, int startY, int dx, int dy, int duration) {
+			super.startScroll(startX, startY, dx, dy, (mDuration != -1) ? mDuration : duration);
+		}
+
+	}
+
 }